@@ -39,6 +39,12 @@ public class AdapterImpl implements Adapter {
 
     final Logger log = (Logger) LoggerFactory.getLogger(AdapterImpl.class);
 
+    /**
+     * 事件循环模式下在 poller 线程里发送的静态资源的最大字节数，
+     * 加上响应头能放进一个写缓冲区（8KB），发送时不需要等待
+     */
+    private static final int INLINE_RESOURCE_SIZE = 4 * 1024;
+
     private Connector connector;
 
     public AdapterImpl(Connector connector) {
@@ -73,6 +79,66 @@ public class AdapterImpl implements Adapter {
 
     }
 
+    /**
+     * 事件循环模式下，判断请求映射到的 Servlet 是否会阻塞
+     * 映射的结果记录在请求上，交给容器处理时不再映射，不修改 Wrapper 的状态；应用正在热加载时映射要等待，也算阻塞
+     * 静态资源只有已经缓存在内存里的小文件不阻塞，其他的要读磁盘或者发送大量数据
+     */
+    @Override
+    public boolean isBlocking(RawRequest rawReq) {
+        Context context = connector.getContainer();
+        if (context.getPaused()) return true;
+        MappingData mapping = map(rawReq);
+        // 404 直接在 poller 线程里返回
+        if (!mapping.contextMatched) return false;
+        if (mapping.wrapper != null) return mapping.wrapper.isBlocking();
+        if (context.getDefaultWrapper().isBlocking()) return true;
+        String path = mapping.path;
+        if (path.endsWith("/")) {
+            path += context.getWelcomeFile();
+        }
+        WebResource resources = context.getResources();
+        return resources == null || !resources.isCachedInMemory(path, INLINE_RESOURCE_SIZE);
+    }
+
+    /**
+     * 解码请求路径，匹配应用，按照 web.xml 查找 Servlet
+     * 结果记录在请求上，同一个请求只映射一次
+     */
+    private MappingData map(RawRequest rawReq) {
+        MappingData mapping = (MappingData) rawReq.getMappingData();
+        if (mapping == null) {
+            mapping = new MappingData();
+            rawReq.setMappingData(mapping);
+        }
+        if (mapping.mapped) return mapping;
+        mapping.mapped = true;
+
+        Context context = connector.getContainer();
+        // 对uri进行规范化，没有需要解码的字符时不用解码
+        String uri = rawReq.getUri();
+        if (uri.indexOf('%') >= 0 || uri.indexOf('+') >= 0) {
+            try {
+                uri = URLDecoder.decode(uri, rawReq.getEncoding().name());
+            } catch (UnsupportedEncodingException e) {
+            }
+        }
+
+        // uri 最前面是'/'接下来就是  j2ee 项目的名字，如果项目的名字匹配，说明此context就是此请求的
+        if (!uri.startsWith(context.getDocBase(), 1)) return mapping;
+        mapping.contextMatched = true;
+
+        // uri 去除应用名称
+        uri = uri.substring(uri.indexOf(context.getDocBase()) + context.getDocBase().length());
+        // 没有 Servlet Path
+        if ("".equals(uri)) {
+            uri += "/";
+        }
+        mapping.path = uri;
+        mapping.wrapper = findWrapper(context, uri);
+        return mapping;
+    }
+
     /**
      * 请求的uri进行解析和规范化
      * 寻找与此请求路径相匹配的wrapper容器
@@ -88,16 +154,11 @@ public class AdapterImpl implements Adapter {
 
         //
         Context context = connector.getContainer();
-        // 对uri进行规范化
-        String uri = rawReq.getUri();
-        try {
-            uri = URLDecoder.decode(uri, rawReq.getEncoding().name());
-        } catch (UnsupportedEncodingException e) {
-        }
+        // 对uri进行规范化，事件循环模式下可能已经映射过了
+        MappingData mapping = map(rawReq);
 
-        // uri 最前面是'/'接下来就是  j2ee 项目的名字，如果项目的名字匹配，说明此context就是此请求的
         // 匹配 Context
-        if (uri.startsWith(context.getDocBase(), 1)) {
+        if (mapping.contextMatched) {
             // 将匹配到的容器(context) 放入请求里面
             request.setContext(context);
         } else {
@@ -106,18 +167,11 @@ public class AdapterImpl implements Adapter {
             return false;
         }
 
-        // uri 去除应用名称
-        uri = uri.substring(uri.indexOf(context.getDocBase()) + context.getDocBase().length());
-        // 没有 Servlet Path
-        if ("".equals(uri)) {
-            uri += "/";
-        }
-
         // 开始进行映射请求 和 容器(wrapper)
         boolean mapRequired = true;
         while (mapRequired) {
             // 通过context容器和请求路径 进行创建 wrapper容器
-            Wrapper wrapper = mapServlet(context, uri);
+            Wrapper wrapper = mapServlet(context, mapping);
             // 将wrapper容器放入request
             request.setWrapper(wrapper);
 
@@ -135,7 +189,7 @@ public class AdapterImpl implements Adapter {
 
             StringBuilder sb = new StringBuilder(120);
             sb.append("映射 Servlet\r\n======Mapping Result======");
-            sb.append("\r\n  Request Path: ").append(uri);
+            sb.append("\r\n  Request Path: ").append(mapping.path);
             sb.append("\r\n  Context: /").append(context.getDocBase());
             sb.append("\r\n  Wrapper: ").append(wrapper);
             sb.append("\r\n  jsessionid: ").append(request.getRequestedSessionId());
@@ -156,6 +210,8 @@ public class AdapterImpl implements Adapter {
                 // reset mapping
                 request.recycle();
                 wrapper = null;
+                mapping.recycle();
+                map(rawReq);
                 mapRequired = true;
             }
         }
@@ -166,10 +222,42 @@ public class AdapterImpl implements Adapter {
      * 映射 Servlet
      *
      * @param context 请求匹配的应用上下文对象
-     * @param uri 请求 Servlet 路径
+     * @param mapping 请求 Servlet 路径和按照 web.xml 查找的结果
      * @return 返回的肯定不为空，默认返回 DefaultServlet
      */
-    private Wrapper mapServlet(Context context, String uri) {
+    private Wrapper mapServlet(Context context, MappingData mapping) {
+
+        String uri = mapping.path;
+        Wrapper mapWrapper = mapping.wrapper;
+
+        // Rule 4 -- Welcome resources processing for servlets
+        // 如果uri是只有从‘/’,直接将uri设置为 欢迎页的路径
+        if (mapWrapper == null) {
+            if (uri.endsWith("/")) {
+                uri += context.getWelcomeFile();
+            }
+        }
+
+        // Rule 5 -- Default servlet
+        // 前面的都没有匹配到 uri的wrapper容器，就设置为默认的servlet容器
+        if (mapWrapper == null) {
+            mapWrapper = context.getDefaultWrapper();
+        }
+
+        // 将此次的请求uri交由与之匹配的wrapper进行处理
+        mapWrapper.setWrapperPath(uri);
+
+        return mapWrapper;
+    }
+
+    /**
+     * 按照精确匹配、路径前缀匹配、扩展名匹配的顺序查找 Servlet
+     *
+     * @param context 请求匹配的应用上下文对象
+     * @param uri 请求 Servlet 路径
+     * @return 没有匹配到返回 null
+     */
+    private Wrapper findWrapper(Context context, String uri) {
 
         Wrapper mapWrapper = null;
         // Rule 1 -- Exact Match 精确匹配 /catalog
@@ -207,23 +295,6 @@ public class AdapterImpl implements Adapter {
             }
         }
 
-        // Rule 4 -- Welcome resources processing for servlets
-        // 如果uri是只有从‘/’,直接将uri设置为 欢迎页的路径
-        if (mapWrapper == null) {
-            if (uri.endsWith("/")) {
-                uri += context.getWelcomeFile();
-            }
-        }
-
-        // Rule 5 -- Default servlet
-        // 前面的都没有匹配到 uri的wrapper容器，就设置为默认的servlet容器
-        if (mapWrapper == null) {
-            mapWrapper = context.getDefaultWrapper();
-        }
-
-        // 将此次的请求uri交由与之匹配的wrapper进行处理
-        mapWrapper.setWrapperPath(uri);
-
         return mapWrapper;
     }
 }
@@ -77,6 +77,123 @@ public class Connector {
 		endpoint.setPort(port);
 	}
 
+	/**
+	 * 是否使用虚拟线程处理请求，需要 Java 21 及以上
+	 */
+	public void setUseVirtualThreads(boolean useVirtualThreads) {
+		endpoint.setUseVirtualThreads(useVirtualThreads);
+	}
+
+	/**
+	 * Acceptor 线程数，支持 SO_REUSEPORT 时每个 Acceptor 绑定自己的监听通道
+	 */
+	public void setAcceptorThreadCount(int acceptorThreadCount) {
+		endpoint.setAcceptorThreadCount(acceptorThreadCount);
+	}
+
+	/**
+	 * 最大连接数，-1 表示不限制
+	 */
+	public void setMaxConnections(int maxConnections) {
+		endpoint.setMaxConnections(maxConnections);
+	}
+
+	/**
+	 * 已完成握手、还没有被接收的连接队列大小
+	 */
+	public void setAcceptCount(int acceptCount) {
+		endpoint.setAcceptCount(acceptCount);
+	}
+
+	/**
+	 * 线程池的最大线程数、常驻线程数，以及多出来的线程最长空闲时间（毫秒）
+	 */
+	public void setMaxThreads(int maxThreads) {
+		endpoint.setMaxThreads(maxThreads);
+	}
+
+	public void setMinSpareThreads(int minSpareThreads) {
+		endpoint.setMinSpareThreads(minSpareThreads);
+	}
+
+	public void setMaxIdleTime(long maxIdleTime) {
+		endpoint.setMaxIdleTime(maxIdleTime);
+	}
+
+	/**
+	 * 事件循环模式，Poller 线程直接处理请求，阻塞型 Servlet 仍然交给线程池
+	 */
+	public void setUseEventLoop(boolean useEventLoop) {
+		endpoint.setUseEventLoop(useEventLoop);
+	}
+
+	public void setPollerThreadCount(int pollerThreadCount) {
+		endpoint.setPollerThreadCount(pollerThreadCount);
+	}
+
+	/**
+	 * 请求行和请求头的最大字节数，超过时返回 431
+	 */
+	public void setMaxHttpHeaderSize(int maxHttpHeaderSize) {
+		endpoint.setMaxHttpHeaderSize(maxHttpHeaderSize);
+	}
+
+	/**
+	 * 请求体的最大字节数，-1 表示不限制
+	 */
+	public void setMaxBodySize(long maxBodySize) {
+		endpoint.setMaxBodySize(maxBodySize);
+	}
+
+	/**
+	 * chunked 响应中小块数据合并后一块的最大字节数，0 表示不合并
+	 */
+	public void setMaxChunkSize(int maxChunkSize) {
+		endpoint.setMaxChunkSize(maxChunkSize);
+	}
+
+	/**
+	 * 优雅关闭时等待正在处理的请求完成的最长时间，毫秒，0 表示立即关闭
+	 */
+	public void setDrainTimeout(long drainTimeout) {
+		endpoint.setDrainTimeout(drainTimeout);
+	}
+
+	/**
+	 * 是否支持零拷贝发送静态文件
+	 */
+	public void setUseSendfile(boolean useSendfile) {
+		endpoint.setUseSendfile(useSendfile);
+	}
+
+	/**
+	 * 长连接空闲时是否归还读写 buffer
+	 */
+	public void setLendIdleBuffers(boolean lendIdleBuffers) {
+		endpoint.setLendIdleBuffers(lendIdleBuffers);
+	}
+
+	/**
+	 * poller 负载不均衡的阈值，超过时迁移空闲的长连接，0 表示不迁移
+	 */
+	public void setPollerRebalanceThreshold(double pollerRebalanceThreshold) {
+		endpoint.setPollerRebalanceThreshold(pollerRebalanceThreshold);
+	}
+
+	/**
+	 * 等待线程池处理的最大请求数，队列满了直接返回 503
+	 */
+	public void setMaxQueueSize(int maxQueueSize) {
+		endpoint.setMaxQueueSize(maxQueueSize);
+	}
+
+	/**
+	 * 请求在队列里等待的最长时间，毫秒，超过的直接返回 503
+	 */
+	public void setMaxQueueTime(long maxQueueTime) {
+		endpoint.setMaxQueueTime(maxQueueTime);
+	}
+
 
 	public void setContext(Context cxt) {
 	    context = cxt;
@@ -111,6 +111,10 @@ public class ContextConfig implements Lifecycle.LifecycleListener {
         // <servlet><servlet-class/></servlet>   web-app/servlet/servlet-class上面的 容器对象可以 通过栈 被这里的标签规则使用
         webXmlParser.addCallMethod("web-app/servlet/servlet-class", "setServletClass", 0);
         webXmlParser.addCallMethod("web-app/servlet/servlet-name", "setName", 0);
+        // <servlet><init-param/></servlet>
+        webXmlParser.addCallMethod("web-app/servlet/init-param", "addInitParameter", 2);
+        webXmlParser.addCallParam("web-app/servlet/init-param/param-name", 0);
+        webXmlParser.addCallParam("web-app/servlet/init-param/param-value", 1);
         // 将一个 servlet对象 作为 Bootstrap里实例化的Context的子容器
         webXmlParser.addSetNext("web-app/servlet", "addChild", "com.ryou.tomcat.container.Container");
 
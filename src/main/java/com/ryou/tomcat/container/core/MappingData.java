@@ -0,0 +1,30 @@
+package com.ryou.tomcat.container.core;
+
+import com.ryou.tomcat.http.Recyclable;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 23:55
+ *
+ * Servlet 映射的结果，保存在 RawRequest 上，和请求一起回收复用
+ * 事件循环模式下判断请求是否阻塞时已经映射过一次，交给容器处理时直接使用，不用再解码、查找
+ */
+public class MappingData implements Recyclable {
+
+    /** 是否已经映射过 */
+    boolean mapped = false;
+    /** 请求路径是否属于这个应用，不属于时返回 404 */
+    boolean contextMatched = false;
+    /** 解码并去掉应用名称之后的请求路径 */
+    String path;
+    /** 按照 web.xml 匹配到的 Servlet，没有匹配到时为 null，由 DefaultServlet 处理 */
+    Wrapper wrapper;
+
+    @Override
+    public void recycle() {
+        mapped = false;
+        contextMatched = false;
+        path = null;
+        wrapper = null;
+    }
+}
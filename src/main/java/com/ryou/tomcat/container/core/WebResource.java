@@ -15,21 +15,33 @@
  */
 package com.ryou.tomcat.container.core;
 
+import ch.qos.logback.classic.Logger;
 import com.ryou.tomcat.container.core.context.Context;
+import com.ryou.tomcat.utils.ByteBufferUtils;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 /**
  * 主要用于缓存 web 应用程序静态资源
- *
+ * + 小于 512KB 的文件缓存字节数组
+ * + 更大的文件（不超过 64MB）使用内存映射，总大小有上限，按最近最少使用淘汰
  */
 public class WebResource {
 
+    private final static Logger log = (Logger) LoggerFactory.getLogger(WebResource.class);
+
     /** 关联的应用上下文 */
     private Context context;
 
@@ -39,12 +51,38 @@ public class WebResource {
 
     private final ConcurrentMap<String, CachedResource> resourceCache = new ConcurrentHashMap<>();
 
+    /** 单个文件超过这个大小不再映射，超过 512KB 才映射，更小的文件缓存字节数组 */
+    private static final long MAX_MAPPED_FILE_SIZE = 64 * 1024 * 1024;
+    /** 所有映射的总大小上限，超过时按最近最少使用淘汰 */
+    private long maxMappedSize = 256 * 1024 * 1024;
+    /** 内存映射的大文件，按访问顺序排列，key 是资源相对路径 */
+    private final LinkedHashMap<String, MappedResource> mappedCache = new LinkedHashMap<>(16, 0.75f, true);
+    /** 当前映射的总大小，由 mappedCache 的锁保护 */
+    private long mappedSize = 0;
+
+    public void setMaxMappedSize(long maxMappedSize) {
+        this.maxMappedSize = maxMappedSize;
+    }
+
+    /**
+     * 只查看缓存，不访问磁盘，事件循环模式下判断静态资源能不能在 poller 线程里发送
+     *
+     * @return 内容已经缓存在内存里、不需要重新检查修改时间并且不超过 maxSize 时返回 true
+     */
+    public boolean isCachedInMemory(String path, int maxSize) {
+        CachedResource resource = resourceCache.get(path);
+        return resource != null && resource.getContent() != null && resource.getCachedContentLength() <= maxSize
+                && System.currentTimeMillis() <= resource.nextCheck;
+    }
+
     public CachedResource getResource(String path) {
         CachedResource resource = resourceCache.get(path);
 
         // 检查缓存是否过期以及检查缓存是否被修改
         if (resource != null && !resource.validateResource()) {
             resourceCache.remove(path);
+            // 文件被修改了，旧的映射不能再用
+            removeMapped(path);
             resource = null;
         }
 
@@ -57,6 +95,135 @@ public class WebResource {
 
         return resource;
     }
+    /**
+     * 取出文件的内存映射，没有或者已经过期时重新映射
+     *
+     * @return 已经增加了引用计数的映射，用完要调用 {@link MappedResource#release()}；映射失败返回 null
+     */
+    private MappedResource acquireMapped(String path, File file, long lastModified, long length) {
+        synchronized (mappedCache) {
+            MappedResource mapped = mappedCache.get(path);
+            if (mapped != null) {
+                if (mapped.lastModified == lastModified && mapped.length == length && mapped.acquire()) {
+                    return mapped;
+                }
+                removeMappedLocked(path);
+            }
+        }
+
+        // 映射比较慢，不持有锁
+        MappedByteBuffer buffer;
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } catch (IOException e) {
+            log.debug("映射文件 [{}] 失败", file, e);
+            return null;
+        }
+
+        MappedResource mapped = new MappedResource(buffer, lastModified, length);
+        mapped.acquire();
+        synchronized (mappedCache) {
+            MappedResource old = mappedCache.put(path, mapped);
+            if (old != null) {
+                // 其他线程同时映射了同一个文件
+                mappedSize -= old.length;
+                old.retire();
+            }
+            mappedSize += length;
+            // 淘汰最近最少使用的映射，至少保留刚映射的这一个
+            Iterator<MappedResource> it = mappedCache.values().iterator();
+            while (mappedSize > maxMappedSize && mappedCache.size() > 1) {
+                MappedResource eldest = it.next();
+                it.remove();
+                mappedSize -= eldest.length;
+                eldest.retire();
+            }
+        }
+        return mapped;
+    }
+
+    private void removeMapped(String path) {
+        synchronized (mappedCache) {
+            removeMappedLocked(path);
+        }
+    }
+
+    private void removeMappedLocked(String path) {
+        MappedResource mapped = mappedCache.remove(path);
+        if (mapped != null) {
+            mappedSize -= mapped.length;
+            mapped.retire();
+        }
+    }
+
+    /**
+     * 应用停止时解除所有映射
+     */
+    public void destroy() {
+        synchronized (mappedCache) {
+            for (MappedResource mapped : mappedCache.values()) {
+                mapped.retire();
+            }
+            mappedCache.clear();
+            mappedSize = 0;
+        }
+    }
+
+    /**
+     * 一个文件的内存映射
+     * 被淘汰或者文件被修改时不会马上解除映射，要等正在发送它的请求都调用了 release，
+     * 否则访问已经解除映射的内存会让 JVM 崩溃
+     */
+    public static class MappedResource {
+        private final MappedByteBuffer buffer;
+        private final long lastModified;
+        private final long length;
+        /** 正在使用它的请求数 */
+        private int refCount = 0;
+        /** 已经从缓存中移除 */
+        private boolean retired = false;
+
+        MappedResource(MappedByteBuffer buffer, long lastModified, long length) {
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * @return 文件内容，每次调用返回一个新的只读视图，可以直接写入通道
+         */
+        public ByteBuffer getContent() {
+            return buffer.duplicate();
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        synchronized boolean acquire() {
+            if (retired) return false;
+            refCount++;
+            return true;
+        }
+
+        /**
+         * 发送完毕，不再访问 {@link #getContent()} 返回的 buffer
+         */
+        public synchronized void release() {
+            if (--refCount == 0 && retired) {
+                ByteBufferUtils.cleanDirectBuffer(buffer);
+            }
+        }
+
+        synchronized void retire() {
+            if (retired) return;
+            retired = true;
+            if (refCount == 0) {
+                ByteBufferUtils.cleanDirectBuffer(buffer);
+            }
+        }
+    }
+
     /** 缓存资源对象 */
     public class CachedResource {
         private File resource = null;
@@ -174,6 +341,15 @@ public class WebResource {
             return resource.getName();
         }
 
+        /** 文件的规范路径，用于零拷贝发送，获取失败返回 null */
+        public String getCanonicalPath() {
+            try {
+                return resource.getCanonicalPath();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
         public boolean isDirectory() {
             return resource.isDirectory();
         }
@@ -182,6 +358,19 @@ public class WebResource {
             return cachedContent;
         }
 
+        /**
+         * 没有缓存字节数组的大文件，返回它的内存映射，用完要调用 {@link MappedResource#release()}
+         *
+         * @return 文件太大或者映射失败时返回 null
+         */
+        public MappedResource getMapped() {
+            if (cachedContent != null || cachedContentLength <= 0
+                    || cachedContentLength > MAX_MAPPED_FILE_SIZE || !resource.isFile()) {
+                return null;
+            }
+            return acquireMapped(path, resource, cachedLastModified, cachedContentLength);
+        }
+
         /** 大小超过 512KB 时，使用 InputStream 底层流读取 */
         public InputStream getInputStream(){
             if (cachedContent != null) {
@@ -25,7 +25,10 @@ import javax.servlet.Servlet;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * 与 Servlet 一一对应，管理实现 Servlet 生命周期方法，加载、初始化和销毁
@@ -69,6 +72,30 @@ public class Wrapper extends Container implements ServletConfig {
     }
 
 
+    /**
+     * web.xml 中 &lt;init-param&gt; 配置的初始化参数
+     */
+    private final Map<String, String> initParameters = new HashMap<>();
+    public void addInitParameter(String name, String value) {
+        initParameters.put(name, value);
+    }
+
+    /**
+     * 事件循环模式下，Servlet 通过这个初始化参数声明自己会阻塞（JDBC、下游 HTTP 调用、大的响应等），
+     * 映射到它的请求仍然交给线程池处理；没有声明的 Servlet 在 poller 线程里运行，
+     * 发送缓冲区满了以后响应数据都留在内存里，等 OP_WRITE 发送
+     * <pre>
+     * &lt;init-param&gt;
+     *     &lt;param-name&gt;panda.blocking&lt;/param-name&gt;
+     *     &lt;param-value&gt;true&lt;/param-value&gt;
+     * &lt;/init-param&gt;
+     * </pre>
+     */
+    public static final String BLOCKING_PARAM = "panda.blocking";
+    public boolean isBlocking() {
+        return Boolean.parseBoolean(initParameters.get(BLOCKING_PARAM));
+    }
+
     /**
      * 每个wrapper对象实例化的时候 都会添加 固定的尾阀门
      */
@@ -174,12 +201,12 @@ public class Wrapper extends Container implements ServletConfig {
 
     @Override
     public String getInitParameter(String name) {
-        return null;
+        return initParameters.get(name);
     }
 
     @Override
     public Enumeration<String> getInitParameterNames() {
-        return null;
+        return Collections.enumeration(initParameters.keySet());
     }
     @Override
     public void log(String msg) {
@@ -88,6 +88,9 @@ public class Context extends Container {
     }
 
     private WebResource resources;
+    public WebResource getResources() {
+        return resources;
+    }
     
     /** 应用正在热部署 */
     private volatile boolean paused = false;
@@ -312,6 +315,8 @@ public class Context extends Container {
         addChild(defaultWrapper);
         // 静态资源
         resources = new WebResource(this);
+        // -Dpanda-server.maxMappedSize=N 大文件内存映射的总大小上限（字节）
+        resources.setMaxMappedSize(Long.getLong("panda-server.maxMappedSize", 256L * 1024 * 1024));
         // 往ServletContext里面添加属性 TODO ??
         getServletContext().setAttribute(RESOURCES_ATTR, resources);
 
@@ -373,6 +378,35 @@ public class Context extends Container {
         // 初始化并启动连接器
         connector = new Connector();
         connector.setContext(this);
+        // -Dpanda-server.virtualThreads=true 开启虚拟线程模式
+        connector.setUseVirtualThreads(Boolean.getBoolean("panda-server.virtualThreads"));
+        // -Dpanda-server.eventLoop=true 开启事件循环模式，Poller 线程数默认和 CPU 核数相同
+        boolean eventLoop = Boolean.getBoolean("panda-server.eventLoop");
+        connector.setUseEventLoop(eventLoop);
+        connector.setPollerThreadCount(Integer.getInteger("panda-server.pollerThreadCount",
+                eventLoop ? Runtime.getRuntime().availableProcessors() : 3));
+        // -Dpanda-server.acceptorThreadCount=N 开启多个 Acceptor
+        connector.setAcceptorThreadCount(Integer.getInteger("panda-server.acceptorThreadCount", 1));
+        connector.setMaxConnections(Integer.getInteger("panda-server.maxConnections", 10000));
+        connector.setAcceptCount(Integer.getInteger("panda-server.acceptCount", 100));
+        connector.setMaxThreads(Integer.getInteger("panda-server.maxThreads", 25));
+        connector.setMinSpareThreads(Integer.getInteger("panda-server.minSpareThreads", 10));
+        connector.setMaxIdleTime(Long.getLong("panda-server.maxIdleTime", 60000L));
+        connector.setPollerRebalanceThreshold(Double.parseDouble(
+                System.getProperty("panda-server.pollerRebalanceThreshold", "0.5")));
+        connector.setMaxHttpHeaderSize(Integer.getInteger("panda-server.maxHttpHeaderSize", 8192));
+        // -Dpanda-server.maxBodySize=-1 不限制请求体大小
+        connector.setMaxBodySize(Long.getLong("panda-server.maxBodySize", 10 * 1024 * 1024L));
+        // -Dpanda-server.maxChunkSize=0 chunked 响应每次写入单独成块
+        connector.setMaxChunkSize(Integer.getInteger("panda-server.maxChunkSize", 8192));
+        // -Dpanda-server.drainTimeout=0 关闭时不等待正在处理的请求
+        connector.setDrainTimeout(Long.getLong("panda-server.drainTimeout", 10000L));
+        // -Dpanda-server.useSendfile=false 关闭零拷贝发送静态文件
+        connector.setUseSendfile(Boolean.parseBoolean(System.getProperty("panda-server.useSendfile", "true")));
+        // -Dpanda-server.lendIdleBuffers=false 空闲的长连接也一直持有读写 buffer
+        connector.setLendIdleBuffers(Boolean.parseBoolean(System.getProperty("panda-server.lendIdleBuffers", "true")));
+        connector.setMaxQueueSize(Integer.getInteger("panda-server.maxQueueSize", 1000));
+        connector.setMaxQueueTime(Long.getLong("panda-server.maxQueueTime", 10000L));
         connector.start();
     }
 
@@ -386,6 +420,11 @@ public class Context extends Container {
             filterWrapper.release();
         }
         filters.clear();
+
+        // 解除静态资源的内存映射
+        if (resources != null) {
+            resources.destroy();
+        }
     }
 
     @Override
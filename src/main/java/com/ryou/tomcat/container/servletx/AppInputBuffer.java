@@ -18,6 +18,7 @@ package com.ryou.tomcat.container.servletx;
 
 import com.ryou.tomcat.http.BufferHolder;
 import com.ryou.tomcat.http.RawRequest;
+import com.ryou.tomcat.http.Recyclable;
 
 import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
@@ -26,40 +27,94 @@ import java.nio.ByteBuffer;
 
 /**
  * 实现 ServletInputStream 从底层读取请求体数据
+ * 每次从底层拿到的是读 buffer 里一段解码后的请求体视图，读完了再取下一段，请求体不会整个缓存起来
+ * 只支持阻塞读取
  */
-public class AppInputBuffer extends ServletInputStream implements BufferHolder {
-    
-    private RawRequest rawReq;
+public class AppInputBuffer extends ServletInputStream implements BufferHolder, Recyclable {
+
+    private final RawRequest rawReq;
     private ByteBuffer bodyView;
+    private boolean finished = false;
 
+    public AppInputBuffer(RawRequest rawReq) {
+        this.rawReq = rawReq;
+    }
 
     @Override
     public void setByteBuffer(ByteBuffer buffer) {
-
+        bodyView = buffer;
     }
 
     @Override
     public ByteBuffer getByteBuffer() {
-        return null;
+        return bodyView;
     }
 
     @Override
     public boolean isFinished() {
-        return false;
+        return finished;
     }
 
+    /**
+     * 阻塞读取，总是可以读
+     */
     @Override
     public boolean isReady() {
-        return false;
+        return true;
     }
 
     @Override
     public void setReadListener(ReadListener readListener) {
-
+        throw new IllegalStateException("不支持非阻塞读取请求体");
     }
 
     @Override
     public int read() throws IOException {
-        return 0;
+        if (!realRead()) {
+            return -1;
+        }
+        return bodyView.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!realRead()) {
+            return -1;
+        }
+        int n = Math.min(len, bodyView.remaining());
+        bodyView.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return bodyView == null ? 0 : bodyView.remaining();
+    }
+
+    /**
+     * 当前的视图读完了，从底层取下一段
+     * @return false 表示请求体读取完毕
+     */
+    private boolean realRead() throws IOException {
+        while (bodyView == null || !bodyView.hasRemaining()) {
+            if (finished) {
+                return false;
+            }
+            if (rawReq.doRead(this) < 0) {
+                finished = true;
+                bodyView = null;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void recycle() {
+        bodyView = null;
+        finished = false;
     }
 }
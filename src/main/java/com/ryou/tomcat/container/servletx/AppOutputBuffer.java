@@ -87,38 +87,54 @@ public class AppOutputBuffer extends ServletOutputStream {
     
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        if (bodyBytes.remaining() == 0) { // 首次写入时等于 0
-            appendByteArray(b, off, len);
-        } else {
-            int n = transfer(b, off, len, bodyBytes);
-            len = len - n;
-            off = off + n;
-            
+        // 大块数据不经过 bodyBytes，发送已有数据后直接交给底层聚集写，省掉一次复制
+        if (len >= bodyBytes.capacity()) {
             flushByteBuffer();
-            if (isFull(bodyBytes)) {
-                flushByteBuffer();
-                appendByteArray(b, off, len);
-            }
+            rawResp.doWrite(ByteBuffer.wrap(b, off, len));
+            isNew = false;
+            return;
+        }
+        // 先尽量填满 bodyBytes
+        int n = transfer(b, off, len, bodyBytes);
+        len = len - n;
+        off = off + n;
+
+        if (len > 0) {
+            // 放不下了，发送已有数据，再处理剩余的
+            flushByteBuffer();
+            appendByteArray(b, off, len);
         }
         isNew = false;
     }
     
+    /**
+     * 直接写入 ByteBuffer，比如内存映射的文件，发送已有数据后交给底层，大块数据不经过任何中间 buffer
+     * 返回时数据已经写入底层缓冲区或者发送完毕，调用者可以释放 src
+     *
+     * @param src 待写入数据，会被消费掉
+     * @throws IOException
+     */
+    public void write(ByteBuffer src) throws IOException {
+        if (!src.hasRemaining()) {
+            return;
+        }
+        flushByteBuffer();
+        rawResp.doWrite(src);
+        isNew = false;
+    }
+
     private void appendByteArray(byte[] b, int off, int len) throws IOException {
         if (len == 0) {
             return;
         }
 
-        // 发送剩余数据
-        int limit = bodyBytes.capacity();
-        while (len >= limit) {
+        // 剩余数据不小于缓冲区容量，直接发送
+        if (len >= bodyBytes.capacity()) {
             rawResp.doWrite(ByteBuffer.wrap(b, off, len));
-            len = len - limit;
-            off = off + limit;
+            return;
         }
         // 还有剩余数据，写入 bodyBytes 中
-        if (len > 0) {
-            transfer(b, off, len, bodyBytes);
-        }
+        transfer(b, off, len, bodyBytes);
     }
     
     /**
@@ -165,10 +181,12 @@ public class AppOutputBuffer extends ServletOutputStream {
             flushCharBuffer();
         }
         
-        if (!rawResp.isCommitted()) {
+        // Servlet 自己设置过长度时（比如零拷贝发送文件）不能覆盖
+        if (!rawResp.isCommitted() && rawResp.getContentLength() == -1) {
             rawResp.setContentLength(bodyBytes.remaining());
         }
-        flush();
+        // 只把数据交给底层缓冲区，不阻塞发送，由 CLOSE 以非阻塞的方式发送，发不完的等待 OP_WRITE
+        flushByteBuffer();
         rawResp.action(ActionCode.CLOSE, null);
     }
     
@@ -18,6 +18,8 @@ package com.ryou.tomcat.container.servletx;
 import com.ryou.tomcat.container.core.context.Context;
 import com.ryou.tomcat.container.core.WebResource;
 import com.ryou.tomcat.container.core.WebResource.CachedResource;
+import com.ryou.tomcat.container.core.WebResource.MappedResource;
+import com.ryou.tomcat.net.SendfileData;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -90,10 +92,21 @@ public class DefaultServlet extends HttpServlet {
             resp.setContentType(resource.getMimeType());
 
             ServletOutputStream ostream = resp.getOutputStream();
-            if (!checkSendfile()) {
+            if (!checkSendfile(req, resp, resource, contentLength)) {
                 byte[] resourceBody = resource.getContent();
 
-                if (resourceBody == null) {
+                // 过滤器包装了响应时拿不到连接器的输出缓冲区，大文件走下面的流式复制
+                MappedResource mapped = resourceBody == null && ostream instanceof AppOutputBuffer
+                        ? resource.getMapped() : null;
+                if (mapped != null) {
+                    // 内存映射的大文件，直接写入通道，不经过堆内存
+                    resp.setContentLength((int) mapped.getLength());
+                    try {
+                        ((AppOutputBuffer) ostream).write(mapped.getContent());
+                    } finally {
+                        mapped.release();
+                    }
+                } else if (resourceBody == null) {
                     InputStream is = resource.getInputStream();
                     InputStream istream = new BufferedInputStream(is, 2048);
                     byte buffer[] = new byte[2048];
@@ -172,7 +185,27 @@ public class DefaultServlet extends HttpServlet {
         return true;
     }
 
-    private boolean checkSendfile() {
-        return false;
+    /**
+     * 连接器支持零拷贝发送，并且文件不小于 sendfileSize 时，
+     * 通过请求属性告诉连接器要发送的文件区间，响应体不经过 ServletOutputStream
+     *
+     * @return true 由连接器发送文件
+     */
+    protected boolean checkSendfile(HttpServletRequest request, HttpServletResponse response,
+                                    CachedResource resource, long length) {
+        if (sendfileSize <= 0 || length < sendfileSize || length > Integer.MAX_VALUE
+                || !resource.isFile()
+                || !Boolean.TRUE.equals(request.getAttribute(SendfileData.SENDFILE_SUPPORTED_ATTR))) {
+            return false;
+        }
+        String canonicalPath = resource.getCanonicalPath();
+        if (canonicalPath == null) {
+            return false;
+        }
+        request.setAttribute(SendfileData.SENDFILE_FILENAME_ATTR, canonicalPath);
+        request.setAttribute(SendfileData.SENDFILE_FILE_START_ATTR, 0L);
+        request.setAttribute(SendfileData.SENDFILE_FILE_END_ATTR, length);
+        response.setContentLength((int) length);
+        return true;
     }
 }
@@ -27,6 +27,7 @@ import javax.servlet.*;
 import javax.servlet.http.*;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.security.Principal;
 import java.text.ParseException;
@@ -69,7 +70,15 @@ public class Request implements HttpServletRequest, Recyclable {
 	private RawRequest rawReq;
     public void setRawReq(RawRequest rawReq) {
         this.rawReq = rawReq;
+        if (aiBuffer == null) {
+            aiBuffer = new AppInputBuffer(rawReq);
+        }
     }
+    private AppInputBuffer aiBuffer;
+    private BufferedReader reader;
+
+    private boolean usingInputStream = false;
+    private boolean usingReader = false;
 
     /**
      * 管理session TODO
@@ -137,6 +146,11 @@ public class Request implements HttpServletRequest, Recyclable {
             session.endAccess();
         }
         session = null;
+
+        aiBuffer.recycle();
+        reader = null;
+        usingInputStream = false;
+        usingReader = false;
     }
 
     @Override
@@ -265,7 +279,11 @@ public class Request implements HttpServletRequest, Recyclable {
 
     @Override
     public ServletInputStream getInputStream() throws IOException {
-        return null;
+        if (usingReader) {
+            throw new IllegalStateException("getReader() has already been called for this request");
+        }
+        usingInputStream = true;
+        return aiBuffer;
     }
 
 
@@ -307,7 +325,7 @@ public class Request implements HttpServletRequest, Recyclable {
 
     @Override
     public long getContentLengthLong() {
-        return 0;
+        return rawReq.getContentLengthLong();
     }
 
     @Override
@@ -352,7 +370,14 @@ public class Request implements HttpServletRequest, Recyclable {
 
     @Override
     public BufferedReader getReader() throws IOException {
-        return null;
+        if (usingInputStream) {
+            throw new IllegalStateException("getInputStream() has already been called for this request");
+        }
+        usingReader = true;
+        if (reader == null) {
+            reader = new BufferedReader(new InputStreamReader(aiBuffer, rawReq.getEncoding()));
+        }
+        return reader;
     }
 
     @Override
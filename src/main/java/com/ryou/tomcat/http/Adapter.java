@@ -18,4 +18,15 @@ public interface Adapter {
      * @throws IOException
      */
     void service(RawRequest request, RawResponse response)  throws Exception;
+
+    /**
+     * 处理这个请求时是否可能阻塞，事件循环模式下阻塞的请求要交给线程池处理
+     * 请求行和请求头已经解析完毕
+     *
+     * @param request 底层原始请求对象
+     * @return 默认都可能阻塞
+     */
+    default boolean isBlocking(RawRequest request) {
+        return true;
+    }
 }
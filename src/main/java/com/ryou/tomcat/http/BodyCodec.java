@@ -14,13 +14,15 @@ public interface BodyCodec {
     int maxSwallowSize = 1024 * 1024; // 1MB
 
     /**
-     * 读取 POST 请求体数据，实现了 chunked 和 identity 两种传输方式
+     * 读取一段解码后的请求体数据，实现了 chunked 和 identity 两种传输方式
+     * 数据不复制，holder 拿到的是读 buffer 的视图，下一次读取之前有效；没有数据时阻塞等待
      *
      * @param input 关联的 HTTP 请求解析类
-     * @return -1 表示读取完毕，>=0 表示读到了数据
-     * @throws IOException
+     * @param holder 接收数据视图，读取完毕时设置为 null
+     * @return -1 表示读取完毕，>0 表示读到的字节数
+     * @throws IOException 连接关闭了，请求体格式错误或者超过大小限制
      */
-    int doRead(InputBuffer input) throws IOException;
+    int doRead(InputBuffer input, BufferHolder holder) throws IOException;
 
     /**
      * 如果服务端准备发送异常响应，但是请求体还有数据未读（比如当上传一个过大的文件时，服务端
@@ -41,5 +43,13 @@ public interface BodyCodec {
      */
     void doWrite(OutputBuffer output, ByteBuffer src) throws IOException;
 
+    /**
+     * Servlet flush 时调用，编码器里暂存的数据要写入缓冲区
+     *
+     * @param output 关联的响应编码处理类
+     * @throws IOException
+     */
+    void flushWrite(OutputBuffer output) throws IOException;
+
     void endWrite(OutputBuffer output) throws IOException;
 }
@@ -0,0 +1,17 @@
+package com.ryou.tomcat.http;
+
+import java.io.IOException;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 23:40
+ *
+ * 请求行和请求头超过 maxHeaderSize，由处理器返回 431 并关闭连接
+ * 和其他解析错误区分开，不会把解析过程中的其他异常当成请求头太大
+ */
+public class HeaderTooLargeException extends IOException {
+
+    public HeaderTooLargeException(String message) {
+        super(message);
+    }
+}
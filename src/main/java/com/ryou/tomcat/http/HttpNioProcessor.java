@@ -5,11 +5,15 @@ import com.ryou.tomcat.http.codec.ChunkedCodec;
 import com.ryou.tomcat.http.codec.IdentityCodec;
 import com.ryou.tomcat.net.Acceptor;
 import com.ryou.tomcat.net.NioChannel;
+import com.ryou.tomcat.net.NioEndpoint;
 import com.ryou.tomcat.net.Processor;
+import com.ryou.tomcat.net.SendfileData;
+import com.ryou.tomcat.net.util.SendfileState;
 import com.ryou.tomcat.net.util.SocketState;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 
 /**
@@ -24,6 +28,8 @@ public class HttpNioProcessor implements Processor, ActionHook {
 
     private final InputBuffer inBuffer;
     private final OutputBuffer outBuffer;
+    /** chunked 响应体编码器 */
+    private final ChunkedCodec chunkedEncoder = new ChunkedCodec();
 
     private final RawRequest request;
     private final RawResponse response;
@@ -43,6 +49,19 @@ public class HttpNioProcessor implements Processor, ActionHook {
 
     private boolean keepAlive = true;
     private boolean error = false;
+    /**
+     * 事件循环模式下，请求已经在 poller 线程里解析完，等待工作线程继续处理
+     * 此时请求、读写 buffer 都保留着，工作线程不再解析，直接交给容器
+     */
+    private boolean offloaded = false;
+    /** 请求体不能读取，没有交给容器，响应发送后丢掉已经到达的请求数据再关闭连接 */
+    private boolean rejected = false;
+
+    /** Servlet 声明了要零拷贝发送的文件，响应头写完之后交给 Poller */
+    private SendfileData sendfileData = null;
+
+    /** 当前连接所属的 endpoint，提交响应时检查是否正在优雅关闭 */
+    private NioEndpoint endpoint = null;
 
     /** 一个长连接最多处理多少个 Request，-1 表示不限制 */
     private int maxKeepAliveRequests = -1;
@@ -82,15 +101,12 @@ public class HttpNioProcessor implements Processor, ActionHook {
                 }
                 break;
             case PARSE_PARAMS:
-                try {
-                    // 如果设置参数失败： 进行再次进行
-                    inBuffer.parseRequestLineAndHeaders();
-                    inBuffer.readAndParseParameters();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                // 请求头在 process 里已经解析过了，这里不能再解析，否则会读走管道化的下一个请求
+                inBuffer.readAndParseParameters();
                 break;
             case WRITE_BODY:
+                // 之前写失败了（客户端断开、事件循环模式下发送缓冲区满了），剩下的数据不再写，处理完后关闭连接
+                if (error) break;
                 action(ActionCode.COMMIT);
                 try {
                     outBuffer.writeBody((ByteBuffer)param[0]);
@@ -99,7 +115,18 @@ public class HttpNioProcessor implements Processor, ActionHook {
                     e.printStackTrace();
                 }
                 break;
+            case READ_BODY:
+                try {
+                    inBuffer.doRead((BufferHolder) param[0]);
+                } catch (IOException e) {
+                    // 请求体没读完，剩下的数据没法跳过，这个连接不能再用了
+                    keepAlive = false;
+                    ((BufferHolder) param[0]).setByteBuffer(null);
+                    throw new UncheckedIOException(e);
+                }
+                break;
             case FLUSH:
+                if (error) break;
                 action(ActionCode.COMMIT);
                 try {
                     outBuffer.flush();
@@ -115,41 +142,75 @@ public class HttpNioProcessor implements Processor, ActionHook {
 
     @Override
     public SocketState process(NioChannel socket) {
-        // 解析通道里的请求
-        inBuffer.setSocket(socket);
-        // 生成通道里的响应
-        outBuffer.setSocket(socket);
+        // 上一个响应还有数据没发送完，Poller 通知可写后继续发送
+        if (socket.hasPendingWrite()) {
+            SocketState state = processWrite(socket);
+            // 读 buffer 里的管道化请求不会再触发 OP_READ，发送完之后接着处理
+            if (state != SocketState.OPEN || !socket.readBuf().hasRemaining()) {
+                return state;
+            }
+        }
+
+        // 在 poller 线程里解析过的请求，跳过解析直接交给容器
+        boolean resume = offloaded;
+        offloaded = false;
+        endpoint = socket.getPoller() != null ? socket.getPoller().getEndpoint() : null;
+        if (!resume) {
+            // 解析通道里的请求
+            inBuffer.setSocket(socket);
+            // 生成通道里的响应
+            outBuffer.setSocket(socket);
+        }
 
         int keepAliveLeft = maxKeepAliveRequests;
 
-        while (!error && keepAlive) {
-            // 1. 解析请求头
-            try {
-                // 如果请求头解析失败，返回LONG，让Handler再次注册事件
-                if (!inBuffer.parseRequestLineAndHeaders()) { // 调用了此方法之后，inBuffer里面的BufferedReader已经 读取到请求体部分了
-                    return SocketState.LONG;
+        // 交给线程池的请求已经检查过 keepAlive，可能是最后一个请求，也要处理
+        while (resume || (!error && keepAlive)) {
+            if (!resume) {
+                // 1. 解析请求头
+                try {
+                    // 如果请求头解析失败，返回LONG，让Handler再次注册事件
+                    if (!inBuffer.parseRequestLineAndHeaders()) { // 调用了此方法之后，inBuffer里面的BufferedReader已经 读取到请求体部分了
+                        return SocketState.LONG;
+                    }
+                } catch (HeaderTooLargeException e) {
+                    // 请求头太大了
+                    log.debug("通道 [{}] {}，返回 431", socket, e.getMessage());
+                    return sendHeaderTooLarge(socket);
+                } catch (IOException e) { // 发生异常 返回停止的信号
+                    // 这里异常通常是 连接关闭和 socket 超时，EOFException SocketTimeoutException
+                    return SocketState.CLOSED;
                 }
-            } catch (IOException e) { // 发生异常 返回停止的信号
-                // 这里异常通常是 连接关闭和 socket 超时，EOFException SocketTimeoutException
-                return SocketState.CLOSED;
-            }
 
-            // 2. 校验请求头数据，设置请求体解码器
-            // 校验
-            checkRequest();
-            // 设置解码器
-            prepareRequest();
+                // 2. 校验请求头数据，设置请求体解码器
+                // 校验
+                checkRequest();
+                // 设置解码器
+                prepareRequest();
 
-            // 解析post方法请求体里面的参数 TODO 很多解码方式还未实现
-            inBuffer.readAndParseParameters();
-            log.info("请求数据读取并解析完毕\r\n======Request======\r\n{}\r\n===================", request);
+                // 3. 检查是否还要保持连接
+                if (maxKeepAliveRequests > 0 && --keepAliveLeft == 0) {
+                    keepAlive = false;
+                }
 
-            // 3. 检查是否还要保持连接
-            if (maxKeepAliveRequests > 0 && --keepAliveLeft == 0) {
-                keepAlive = false;
+                // 事件循环模式下，在读取请求体之前决定要不要交给线程池
+                // 读取请求体、阻塞型 Servlet 都会等待，不能占用 poller 线程
+                if (!error && socket.getPoller() != null && socket.getPoller().inEventLoop()
+                        && (hasBody() || adapter.isBlocking(request))) {
+                    offloaded = true;
+                    return SocketState.OFFLOAD;
+                }
             }
+            resume = false;
             // 4. 交给容器处理请求并生成响应
             if (!error) {
+                // 解析post方法请求体里面的参数 TODO 很多解码方式还未实现
+                inBuffer.readAndParseParameters();
+                log.info("请求数据读取并解析完毕\r\n======Request======\r\n{}\r\n===================", request);
+
+                if (socket.getPoller() != null && socket.getPoller().getEndpoint().getUseSendfile()) {
+                    request.setAttribute(SendfileData.SENDFILE_SUPPORTED_ATTR, Boolean.TRUE);
+                }
                 try {
                     log.debug("交给容器处理请求并生成响应");
                     adapter.service(request, response);
@@ -159,10 +220,17 @@ public class HttpNioProcessor implements Processor, ActionHook {
                     e.printStackTrace();
                 }
             }
-            // TODO 检查客户端的数据是否发送完毕
+            // 跳过没有被读取的请求体，读 buffer 里剩下的就是下一个请求
+            try {
+                inBuffer.endRequest();
+            } catch (IOException e) {
+                log.debug("跳过请求体失败，发送完响应后关闭连接", e);
+                keepAlive = false;
+            }
 
+            boolean flushed = true;
             try {
-                outBuffer.end();
+                flushed = outBuffer.end();
             } catch (Throwable t) {
                 log.error("Error finishing response", t);
                 error = true;
@@ -173,39 +241,138 @@ public class HttpNioProcessor implements Processor, ActionHook {
             inBuffer.recycle();
             outBuffer.recycle();
 
+            // 请求头是读 buffer 的视图，等响应写完才能丢掉读 buffer 里的数据
+            if (rejected) {
+                rejected = false;
+                try {
+                    socket.discardInput();
+                } catch (IOException e) {
+                    log.debug("丢掉请求数据失败 [{}]", socket, e);
+                }
+            }
+
+            // 响应头已经写好，开始发送文件，发送缓冲区满了就交给 Poller，释放工作线程
+            if (sendfileData != null) {
+                SendfileData sd = sendfileData;
+                sendfileData = null;
+                // 文件在第一次发送时才打开，出错时直接丢弃
+                if (!error) {
+                    if (!keepAlive) {
+                        sd.setKeepAliveState(SendfileData.KeepAliveState.NONE);
+                    } else if (inBuffer.hasBufferedData()) {
+                        sd.setKeepAliveState(SendfileData.KeepAliveState.PIPELINED);
+                    } else {
+                        sd.setKeepAliveState(SendfileData.KeepAliveState.OPEN);
+                    }
+                    socket.setSendfileData(sd);
+                    SendfileState sendfileState = socket.getPoller().processSendfile(null, socket, true);
+                    if (sendfileState == SendfileState.PENDING) {
+                        return SocketState.SENDFILE;
+                    }
+                    if (sendfileState == SendfileState.ERROR) {
+                        error = true;
+                    }
+                    // 发送完了，和普通的响应一样处理连接
+                    flushed = true;
+                }
+            }
+
+            // 响应数据没有发送完，释放工作线程，剩下的数据等待 OP_WRITE 继续发送
+            if (!error && !flushed) {
+                return SocketState.WRITE;
+            }
+
             // 6. 返回保持连接的状态
-            if (!error && keepAlive) {
+            // 读 buffer 里还有管道化的请求时继续处理，响应按照请求的顺序发送
+            if (!error && keepAlive && !inBuffer.hasBufferedData()) {
                 return SocketState.OPEN;
             }
         }// end while
         return SocketState.CLOSED;
     }
 
+    @Override
+    public void recycle() {
+        keepAlive = true;
+        sendfileData = null;
+        error = false;
+        offloaded = false;
+        rejected = false;
+        endpoint = null;
+        inBuffer.detach();
+        outBuffer.detach();
+    }
+
+
+    /**
+     * 继续发送上一个响应剩下的数据
+     *
+     * @param socket NioChannel
+     * @return 没发送完继续等待 OP_WRITE，发送完了按照保持连接的状态返回
+     */
+    private SocketState processWrite(NioChannel socket) {
+        try {
+            if (!socket.flush(false)) {
+                return SocketState.WRITE;
+            }
+        } catch (IOException e) {
+            // 客户端关闭了连接
+            log.debug("继续发送响应数据失败 [{}]", socket, e);
+            return SocketState.CLOSED;
+        }
+        return (!error && keepAlive) ? SocketState.OPEN : SocketState.CLOSED;
+    }
 
+    /**
+     * 请求头超过 maxHttpHeaderSize，返回 431 并关闭连接
+     * 剩下的请求头无法解析，也就无法确定下一个请求从哪里开始
+     *
+     * @param socket NioChannel
+     * @return 发送完毕返回 CLOSED，没发送完等待 OP_WRITE，发送完后关闭
+     */
+    private SocketState sendHeaderTooLarge(NioChannel socket) {
+        keepAlive = false;
+        // 丢掉已经到达的请求头，否则关闭时内核会发送 RST，客户端可能收不到 431
+        try {
+            socket.discardInput();
+        } catch (IOException e) {
+            return SocketState.CLOSED;
+        }
+        response.setStatus(HttpToken.SC_REQUEST_HEADER_FIELDS_TOO_LARGE);
+        response.setContentLength(0);
+        boolean flushed;
+        try {
+            action(ActionCode.COMMIT);
+            flushed = outBuffer.end();
+        } catch (IOException e) {
+            return SocketState.CLOSED;
+        }
+        inBuffer.recycle();
+        outBuffer.recycle();
+        return flushed ? SocketState.CLOSED : SocketState.WRITE;
+    }
 
     /**
      * 检查请求是否合法，
      */
     private void checkRequest() {
-        // 0. 检查协议版本
-        String version = request.getProtocol();
-        if (!"HTTP/1.1".equalsIgnoreCase(version)) {
+        // 0. 检查协议版本，请求头都直接比较字节，不转成字符串
+        if (!request.protocol().equalsIgnoreCase("HTTP/1.1")) {
             error = true;
 //            Send 505; Unsupported HTTP version TODO
 //            response.setStatus(505);
         }
 
-        // 1. 检查是否要保持连接
-        String conn = request.getHeader("connection");
-        if (conn == null || "close".equals(conn)) {
-            keepAlive = false;
-        } else if ("keep-alive".equals(conn)) {
+        // 1. 检查是否要保持连接，Connection 的值在解析请求头时已经转换好
+        if (request.isConnectionKeepAlive()) {
             keepAlive = true;
+        } else if (request.isConnectionClose() || request.getHeaderBytes(KnownHeaders.CONNECTION) == null) {
+            keepAlive = false;
         }
         // 2. 检查 expect 头
         // 3. 检查 host
-        String host = request.getHeader("host");
-        if (host == null || host.length() <= 0) {
+        MessageBytes host = request.getHeaderBytes(KnownHeaders.HOST);
+        if (host == null || host.getLength() <= 0) {
             error = true;
 //            400 - Bad request TODO
 //            response.setStatus(400);
@@ -218,29 +385,75 @@ public class HttpNioProcessor implements Processor, ActionHook {
     private void prepareRequest() {
 
         // 3. 检查传输编码
+        if (request.isTransferEncodingInvalid()) {
+            // 最后一个编码不是 chunked，无法确定请求体在哪里结束，不能当作没有请求体处理
+            rejectRequest(HttpToken.SC_BAD_REQUEST);
+            return;
+        }
+        if (request.isTransferCodingUnsupported()) {
+            // 只支持 chunked，请求体无法解码
+            rejectRequest(HttpToken.SC_NOT_IMPLEMENTED);
+            return;
+        }
         boolean contentDelimitation = false;
         // 检测是否有传输编码格式
-        String transferEncoding = request.getHeader("transfer-encoding");
         // 如果编码格式为chunked
-        if ("chunked".equalsIgnoreCase(transferEncoding)) {
+        if (request.isChunked()) {
             contentDelimitation = true;
-            inBuffer.setBodyCodec(new ChunkedCodec(request.getContentType()));
+            inBuffer.setBodyCodec(new ChunkedCodec(inBuffer.getMaxBodySize(), inBuffer.getMaxHeaderSize()));
         }
 
         // 4. 检查是否有content-length头
-        int contentLength = request.getContentLength();
+        if (request.isContentLengthInvalid()) {
+            // 不知道请求体有多长，也就找不到下一个请求
+            rejectRequest(HttpToken.SC_BAD_REQUEST);
+            return;
+        }
+        long contentLength = request.getContentLengthLong();
         if (contentLength >= 0) {
             if (contentDelimitation) {
                 // 有了 chunked 编码，contentLength 无效
                 request.removeHeader("content-length");
                 request.setContentLength(-1);
             } else {
-                inBuffer.setBodyCodec(new IdentityCodec(contentLength, request.getContentType()));
+                if (contentLength > Integer.MAX_VALUE) {
+                    // 请求体没法读取也没法跳过
+                    rejectRequest(HttpToken.SC_BAD_REQUEST);
+                    return;
+                }
+                long maxBodySize = inBuffer.getMaxBodySize();
+                if (maxBodySize >= 0 && contentLength > maxBodySize) {
+                    // 请求体不读取
+                    rejectRequest(HttpToken.SC_PAYLOAD_TOO_LARGE);
+                    return;
+                }
+                inBuffer.setBodyCodec(new IdentityCodec((int) contentLength, request.getContentType()));
             }
         }
 
     }
 
+    /**
+     * 请求有没有请求体，事件循环模式下有请求体的请求都交给线程池
+     * 请求体可能还没有全部到达，读取和跳过请求体都可能要等待
+     */
+    private boolean hasBody() {
+        return request.isChunked() || request.getContentLengthLong() > 0;
+    }
+
+    /**
+     * 请求体不能读取，不交给容器，返回 status 并关闭连接
+     * 响应发送后丢掉已经到达的请求数据，否则关闭时内核会发送 RST，客户端可能收不到响应
+     *
+     * @param status 响应状态码
+     */
+    private void rejectRequest(int status) {
+        error = true;
+        keepAlive = false;
+        rejected = true;
+        response.setStatus(status);
+    }
+
     private void prepareResponse() throws IOException {
         // 0. 检查是否有响应体
         int statusCode = response.getStatus();
@@ -266,12 +479,35 @@ public class HttpNioProcessor implements Processor, ActionHook {
                 outBuffer.setBodyCodec(new IdentityCodec(contentLength, contentType));
             } else {
                 response.addHeader("Transfer-Encoding", "chunked");
-                // TODO 添加了contentType
-                outBuffer.setBodyCodec(new ChunkedCodec(contentType));
+                // 编码器在响应之间复用，合并小块数据的 buffer 不用每次分配
+                chunkedEncoder.recycle();
+                chunkedEncoder.setMaxChunkSize(outBuffer.getMaxChunkSize());
+                outBuffer.setBodyCodec(chunkedEncoder);
             }
         }
 
+        // 3. 优雅关闭期间发送完这个响应就关闭连接，告诉客户端不要再复用
+        if (endpoint != null && endpoint.isDraining()) {
+            keepAlive = false;
+        }
+        if (!keepAlive) {
+            response.addHeader("Connection", "close");
+        }
+
         response.addHeader("Server", "cytomcat/1.0");
+        prepareSendfile();
+    }
+
+    /**
+     * Servlet 通过请求属性声明了要发送的文件时，记下文件区间，响应体由 Poller 零拷贝发送
+     */
+    private void prepareSendfile() {
+        String fileName = (String) request.getAttributes().get(SendfileData.SENDFILE_FILENAME_ATTR);
+        if (fileName != null) {
+            long start = (Long) request.getAttributes().get(SendfileData.SENDFILE_FILE_START_ATTR);
+            long end = (Long) request.getAttributes().get(SendfileData.SENDFILE_FILE_END_ATTR);
+            sendfileData = new SendfileData(fileName, start, end - start);
+        }
     }
 
 }
@@ -20,6 +20,11 @@ import java.nio.charset.StandardCharsets;
  * 2. 根据请求 交给容器处理请求并生成   响应
  */
 public class HttpNioProcessorTemporary implements Processor, ActionHook {
+
+    @Override
+    public void recycle() {
+    }
+
     @Override
     public SocketState process(NioChannel socket) {
 
@@ -27,6 +32,7 @@ public class HttpNioProcessorTemporary implements Processor, ActionHook {
 
         ByteBuffer readBuf = socket.readBuf();
         try {
+            readBuf.clear();
             socket.read(readBuf);
             readBuf.flip();
 
@@ -27,6 +27,9 @@ public final class HttpToken {
     public static final int SC_NOT_FOUND = 404;
     public static final int SC_INTERNAL_SERVER_ERROR = 500;
     public static final int SC_NOT_MODIFIED = 304;
+    public static final int SC_PAYLOAD_TOO_LARGE = 413;
+    public static final int SC_REQUEST_HEADER_FIELDS_TOO_LARGE = 431;
+    public static final int SC_NOT_IMPLEMENTED = 501;
 
     static String msg (int code) {
         switch (code) {
@@ -36,6 +39,9 @@ public final class HttpToken {
             case SC_NOT_FOUND: return " Not Found";
             case SC_INTERNAL_SERVER_ERROR: return " Internal Server Error";
             case SC_NOT_MODIFIED: return " Not Modified";
+            case SC_PAYLOAD_TOO_LARGE: return " Payload Too Large";
+            case SC_REQUEST_HEADER_FIELDS_TOO_LARGE: return " Request Header Fields Too Large";
+            case SC_NOT_IMPLEMENTED: return " Not Implemented";
             default: return "";
         }
     }
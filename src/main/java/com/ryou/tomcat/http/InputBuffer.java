@@ -1,15 +1,17 @@
 package com.ryou.tomcat.http;
 
 import ch.qos.logback.classic.Logger;
+import com.ryou.tomcat.http.codec.BodyForm;
 import com.ryou.tomcat.net.NioChannel;
 import org.slf4j.LoggerFactory;
 
-import java.io.*;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * @Author: 汉高鼠刘邦
@@ -17,6 +19,11 @@ import java.nio.charset.StandardCharsets;
  *
  * 使用有限状态机解析 HTTP 协议请求行和请求体
  * 请求行--请求头----请求体
+ *
+ * 请求行和请求头逐个字节解析，数据不够时停在任意一个字节上，下次读到数据后从停下的地方继续，不会重新解析
+ * + 解析期间不移动读 buffer 的 position，各部分只记录相对于请求开头的偏移量，
+ *   读取数据时 compact 把请求移动到 buffer 开头，偏移量仍然有效
+ * + 解析完成后按照偏移量把请求行和请求头设置成指向读 buffer 的 {@link MessageBytes}，不创建字符串
  */
 public class InputBuffer implements Recyclable, BufferHolder {
 
@@ -25,14 +32,14 @@ public class InputBuffer implements Recyclable, BufferHolder {
      * 请求解析状态
      */
     public enum ParseStatus {
-        START, // 解析开始
+        START, // 解析开始，跳过请求前面的空行
         METHOD, // 解析请求方法
         URI, // 解析请求 URI
         VERSION, // 解析协议版本
         QUERY, // 解析查询参数
-        HEADER_NAME, // 解析头域名称
+        HEADER_NAME, // 解析头域名称，或者请求头结尾的空行
         HEADER_VALUE, // 解析头域值
-        HEADER_END, // 解析一个头域完毕
+        HEADER_END, // 请求头结尾的空行读到了 CR，等待 LF
         DONE // 解析完成
     }
 
@@ -40,16 +47,33 @@ public class InputBuffer implements Recyclable, BufferHolder {
     final Logger log = (Logger) LoggerFactory.getLogger(InputBuffer.class);
 
     /** 当前解析状态 */
-    private ParseStatus status = ParseStatus.METHOD;
-
-    /** 正在解析请求行 */
-    protected boolean parsingRequestLine = false;
-    /** 正在解析请求头域 */
-    private boolean parsingHeader = false;
+    private ParseStatus status = ParseStatus.START;
+    /** 已经解析到的位置，相对于请求开头 */
+    private int parsePos = 0;
+    /** 当前正在解析的部分开始的位置，相对于请求开头 */
+    private int tokenStart = 0;
+    /** 请求方法、URI 路径、查询参数、协议版本的 [开始, 结束) 位置，没有查询参数时为 -1 */
+    private int methodEnd;
+    private int uriStart;
+    private int uriEnd;
+    private int queryStart;
+    private int queryEnd;
+    private int versionStart;
+    private int versionEnd;
+    /** 当前头域值的 [开始, 结束) 位置，去掉了前后的空白，还没有遇到非空白字符时开始位置为 -1 */
+    private int valueStart;
+    private int valueEnd;
+    /** 每个头域 4 个偏移量：名称开始、名称结束、值开始、值结束 */
+    private int[] headerOffsets = new int[4 * 16];
+    private int headerCount = 0;
     /**
-     * 请求头、请求行的最大 大小
+     * 请求头、请求行的最大 大小，超过时返回 431，由 endpoint 配置
      */
     private int maxHeaderSize = 8192;
+    /**
+     * 请求体的最大字节数，-1 表示不限制，由 endpoint 配置
+     */
+    private long maxBodySize = -1;
 
     /** 请全体解析器 */
     private BodyCodec codec;
@@ -61,18 +85,6 @@ public class InputBuffer implements Recyclable, BufferHolder {
     /** byteBuffer 引用的是 NioChannel 内部的  readBuf */
     private ByteBuffer readBuf;
 
-    /** Buffer转成 bufferedReader*/
-    private BufferedReader bufferedReader;
-
-    public BufferedReader getBufferedReader() {
-        return bufferedReader;
-    }
-    /**
-     * 请求头 信息在字节数组{@link ByteBuffer} 中结束的位置，即请求体数据开始的位置
-     * Request Header End
-     */
-    private int reqHeaderEndIndex;
-
     public InputBuffer(RawRequest request) {
         this.request = request;
     }
@@ -84,122 +96,307 @@ public class InputBuffer implements Recyclable, BufferHolder {
      */
     public void setSocket(NioChannel socket) {
         this.socket = socket;
-        readBuf = socket.readBuf(); // 从通道里面带来的 buffer给readBuf
-        readBuf.clear(); // 清理掉buffer里面的所有东西
+        // 从通道里面带来的 buffer给readBuf
+        // 读 buffer 处于读模式，里面可能还有管道化的下一个请求，不能清空
+        readBuf = socket.readBuf();
+        if (socket.getPoller() != null) {
+            maxHeaderSize = socket.getPoller().getEndpoint().getMaxHttpHeaderSize();
+            maxBodySize = socket.getPoller().getEndpoint().getMaxBodySize();
+        }
     }
 
+    public int getMaxHeaderSize() {
+        return maxHeaderSize;
+    }
 
-    private StringBuilder sb = new StringBuilder();
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
 
     /**
-     * 将sb里面的内容取出，并且将其置为空
-     * @return String
+     * 读 buffer 里是否还有没处理的数据，即管道化的下一个请求
      */
-    private String takeString() {
-        String str = sb.toString();
-        sb.setLength(0);
-        return str;
+    public boolean hasBufferedData() {
+        return readBuf != null && readBuf.hasRemaining();
     }
 
 
     /**
-     * 使用状态机的方法，遍历字节解析请求头（解析时没有进行严谨性校验）
+     * 解析请求行和请求头，数据不够时从通道读取，通道里暂时没有数据时返回 false，
+     * 解析状态保留下来，Poller 通知可读后再次调用时继续解析
      *
-     * @return true - 读取完成，false - 读取到部分请求头
-     * @throws IOException
+     * @return true - 解析完成，false - 请求头还不完整
+     * @throws HeaderTooLargeException 请求头超过 maxHeaderSize
+     * @throws IOException 连接关闭了，或者请求行、请求头格式错误
      */
     public boolean parseRequestLineAndHeaders() throws IOException {
         log.info("解析请求行和请求 Headers");
 
-        // 检查是否读取到信息
-        if (!fill()) return false;
-
-        // 进行解析请求行和请求头
-        bufferedReader = doByteByteBufferToBufferReader(readBuf);
-        // 获取请求行
-        String requestLine = bufferedReader.readLine();
-        String[] lines = requestLine.split(" "); // TODO HttpToken
-        // 请求方法 GET / POST
-        String method = lines[0];
-        request.setMethod(method);
-        // 处理请求路径和请求参数的分离
-        String urlAndParameters = lines[1];
-        try {
-            URI uri = new URI(urlAndParameters);
-            // 路径
-            String path = uri.getPath();
-            request.setUri(path);
-            // 参数
-            String query = uri.getQuery();
-            // 如果请求行里面有参数，将参数放入request里面
-            if (query != null && !query.equals("")) request.setQuery(query.getBytes(StandardCharsets.UTF_8));
-        } catch (URISyntaxException e) {
-            log.error("不是一个资源路径");
+        // 读 buffer 里可能已经有完整的请求了，先解析，不够时才从通道读取
+        while (!parse()) {
+            // 请求头还没结束，至少还差一个字节
+            checkHeaderSize(parsePos + 1);
+            ensureHeaderSpace();
+            if (!fill(false)) return false;
         }
+        checkHeaderSize(parsePos);
 
-        // HTTP1.1版本
-        String protocol = lines[2];
-        request.setProtocol(protocol);
+        fillRequest();
+        request.parseKnownHeaders();
+        // 只消费请求头，后面的请求体和下一个请求留在读 buffer 里
+        readBuf.position(readBuf.position() + parsePos);
+        return true;
+    }
 
-        /* 请求头解析 */
+    /**
+     * 从上次停下的位置继续解析读 buffer 里的数据
+     *
+     * @return 是否解析到了请求头的结尾
+     */
+    private boolean parse() throws IOException {
+        if (status == ParseStatus.START) {
+            // 请求之间可能有多余的空行
+            skipBlankLines();
+            if (!readBuf.hasRemaining()) return false;
+            status = ParseStatus.METHOD;
+            parsePos = 0;
+            tokenStart = 0;
+            headerCount = 0;
+            queryStart = queryEnd = -1;
+        }
+        int start = readBuf.position();
+        int limit = readBuf.limit();
+        int pos = start + parsePos;
+        while (pos < limit && status != ParseStatus.DONE) {
+            byte b = readBuf.get(pos);
+            int offset = pos - start;
+            switch (status) {
+                case METHOD:
+                    if (b == ' ') {
+                        if (offset == 0) throw badRequest("请求方法为空");
+                        methodEnd = offset;
+                        uriStart = offset + 1;
+                        status = ParseStatus.URI;
+                    } else if (b == '\r' || b == '\n') {
+                        throw badRequest("请求行不完整");
+                    }
+                    break;
+                case URI:
+                    if (b == ' ' || b == '?') {
+                        if (offset == uriStart) throw badRequest("请求路径为空");
+                        uriEnd = offset;
+                        if (b == '?') {
+                            queryStart = offset + 1;
+                            status = ParseStatus.QUERY;
+                        } else {
+                            versionStart = offset + 1;
+                            status = ParseStatus.VERSION;
+                        }
+                    } else if (b == '\r' || b == '\n') {
+                        throw badRequest("请求行不完整");
+                    }
+                    break;
+                case QUERY:
+                    if (b == ' ') {
+                        queryEnd = offset;
+                        versionStart = offset + 1;
+                        status = ParseStatus.VERSION;
+                    } else if (b == '\r' || b == '\n') {
+                        throw badRequest("请求行不完整");
+                    }
+                    break;
+                case VERSION:
+                    if (b == '\r') {
+                        versionEnd = offset;
+                    } else if (b == '\n') {
+                        if (readBuf.get(pos - 1) != '\r') versionEnd = offset;
+                        tokenStart = offset + 1;
+                        status = ParseStatus.HEADER_NAME;
+                    }
+                    break;
+                case HEADER_NAME:
+                    if (offset == tokenStart && (b == '\r' || b == '\n')) {
+                        // 空行，请求头结束
+                        status = b == '\r' ? ParseStatus.HEADER_END : ParseStatus.DONE;
+                    } else if (b == ':') {
+                        addHeaderOffsets(tokenStart, offset);
+                        valueStart = -1;
+                        status = ParseStatus.HEADER_VALUE;
+                    } else if (b == '\r' || b == '\n') {
+                        throw badRequest("请求头缺少冒号");
+                    } else if (b >= 'A' && b <= 'Z') {
+                        // 头域名称不区分大小写，直接在 buffer 里转成小写
+                        readBuf.put(pos, (byte) (b + ('a' - 'A')));
+                    }
+                    break;
+                case HEADER_VALUE:
+                    if (b == '\n') {
+                        int i = (headerCount - 1) * 4;
+                        headerOffsets[i + 2] = valueStart < 0 ? offset : valueStart;
+                        headerOffsets[i + 3] = valueStart < 0 ? offset : valueEnd;
+                        tokenStart = offset + 1;
+                        status = ParseStatus.HEADER_NAME;
+                    } else if (b != ' ' && b != '\t' && b != '\r') {
+                        if (valueStart < 0) valueStart = offset;
+                        valueEnd = offset + 1;
+                    }
+                    break;
+                case HEADER_END:
+                    if (b != '\n') throw badRequest("请求头结尾缺少换行");
+                    status = ParseStatus.DONE;
+                    break;
+                default:
+                    break;
+            }
+            pos++;
+        }
+        parsePos = pos - start;
+        return status == ParseStatus.DONE;
+    }
 
-        String content;
-        while (!((content = bufferedReader.readLine()).trim()).equals("")) {
-            String[] header = content.split(": ");
-            // 请求头 属性段 的名字
-            String headerName = header[0].toLowerCase();
-            String headerValue = header[1];
-            // 添加到request里面
-            request.addHeader(headerName, headerValue);
+    /**
+     * 记录一个头域名称的位置，头域多于数组容量时扩大一倍
+     */
+    private void addHeaderOffsets(int nameStart, int nameEnd) {
+        int i = headerCount * 4;
+        if (i == headerOffsets.length) {
+            headerOffsets = Arrays.copyOf(headerOffsets, headerOffsets.length * 2);
         }
+        headerOffsets[i] = nameStart;
+        headerOffsets[i + 1] = nameEnd;
+        headerCount++;
+    }
 
-//        log.info("请求头部数据读取并解析完毕\r\n======Request======\r\n{}\r\n===================", request);
+    private IOException badRequest(String message) {
+        return new IOException("请求格式错误：" + message);
+    }
 
-        return true;
+    /**
+     * 解析完成后，按照记录的偏移量设置请求行和请求头，都指向读 buffer，用到时才转成字符串
+     */
+    private void fillRequest() {
+        int start = readBuf.position();
+        request.method().setBytes(readBuf, start, start + methodEnd);
+        request.uri().setBytes(readBuf, start + uriStart, start + uriEnd);
+        if (queryStart >= 0 && queryEnd > queryStart) {
+            request.queryString().setBytes(readBuf, start + queryStart, start + queryEnd);
+        }
+        request.protocol().setBytes(readBuf, start + versionStart, start + versionEnd);
+        for (int i = 0; i < headerCount * 4; i += 4) {
+            request.addHeader(readBuf, start + headerOffsets[i], start + headerOffsets[i + 1],
+                    start + headerOffsets[i + 2], start + headerOffsets[i + 3]);
+        }
+    }
+
+    /**
+     * 跳过请求前面的空行
+     */
+    private void skipBlankLines() {
+        while (readBuf.hasRemaining()) {
+            byte b = readBuf.get(readBuf.position());
+            if (b != '\r' && b != '\n') break;
+            readBuf.position(readBuf.position() + 1);
+        }
     }
 
     /**
-     * 将ByteBuffer转换成能够逐行读取的BufferedReader
-     * @param readBuf 从ByteBuffer转成BufferedReader
-     * @return BufferedReader
-     * @throws IOException out.write(readBuf.array()) 抛出的异常
+     * 请求行和请求头超过 maxHeaderSize 时抛出异常，由处理器返回 431
+     *
+     * @param size 已经读到的请求头字节数
      */
-    private BufferedReader doByteByteBufferToBufferReader(ByteBuffer readBuf) throws IOException {
-
-        // 将readBuf里面的内容转换成字节数组
-        byte[] bytes = new byte[readBuf.remaining()];
-        readBuf.get(bytes);
-        // 字节数组转成输入流
-        ByteArrayInputStream input = new ByteArrayInputStream(bytes);
-        // 转为字符输入流
-        InputStreamReader isr = new InputStreamReader(input);
-        // 字符流转为字符缓存
-        return new BufferedReader(isr);
+    private void checkHeaderSize(int size) throws HeaderTooLargeException {
+        if (size > maxHeaderSize) {
+            throw new HeaderTooLargeException("请求头超过 maxHeaderSize " + maxHeaderSize);
+        }
     }
 
     /**
-     * 获取一段 字节转换成 str
-     * @param start 起点
-     * @param offers 距离起点的距离
-     * @return String 这段间距获取到的str
+     * 读 buffer 里都是没处理完的请求头时，扩大读 buffer，最大到 maxHeaderSize
+     * 连接的读 buffer 从小的级别开始，只有请求头确实很大时才占用更多内存
      */
-    public String getStr(int start, int offers) {
-        byte[] bytes = new byte[offers]; // 临时存储
-        readBuf.get(bytes,start,offers); // 获取
-        return new String(bytes); // 返回
+    private void ensureHeaderSpace() {
+        if (readBuf.position() > 0 || readBuf.limit() < readBuf.capacity()) return;
+        int capacity = Math.min(readBuf.capacity() * 2, maxHeaderSize);
+        if (capacity > readBuf.capacity()) {
+            readBuf = socket.expandReadBuf(capacity);
+            log.debug("请求头超过读 buffer 大小，扩大到 [{}B]", readBuf.capacity());
+        }
     }
 
-    private boolean fill() throws IOException {
-        boolean read = false; // 是否有数据读取
-        // 从通道读取数据
-        int n = socket.read(readBuf);
-        // 将readBuf切换为可以读取的模式
-        readBuf.flip();
+    /**
+     * 从通道读取数据追加到读 buffer，没有处理的数据先移动到 buffer 开头
+     *
+     * @param block 没有数据时是否等待，读取请求体时阻塞等待，解析请求头时由 Poller 通知
+     * @return 是否读到了数据
+     */
+    private boolean fill(boolean block) throws IOException {
+        // 请求头已经解析完了，compact 会覆盖请求头所在的位置，先转成字符串
+        if (status == ParseStatus.DONE) {
+            request.detachBuffer();
+        }
+        // 切换为写入模式，没有处理的数据移动到开头
+        readBuf.compact();
+        if (!readBuf.hasRemaining()) {
+            // 读 buffer 里都是没处理的数据，请求头太大了
+            readBuf.flip();
+            throw new IOException("请求头超过读缓冲区大小 " + readBuf.capacity());
+        }
+        int n;
+        try {
+            // 从通道读取数据
+            n = socket.read(readBuf);
+            if (n == 0 && block) {
+                socket.awaitReadable();
+                n = socket.read(readBuf);
+            }
+        } finally {
+            // 将readBuf切换为可以读取的模式
+            readBuf.flip();
+        }
         if (n == -1) {
-            throw new IOException("fill() --- 通道被关闭");
+            throw new EOFException("fill() --- 通道被关闭");
+        }
+        return n > 0;
+    }
+
+    /**
+     * 阻塞读取请求体数据
+     *
+     * @return 读取的字节数
+     * @throws EOFException 连接关闭了
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        while (!readBuf.hasRemaining()) {
+            fill(true);
+        }
+        int n = Math.min(len, readBuf.remaining());
+        readBuf.get(b, off, n);
+        return n;
+    }
+
+    /**
+     * 阻塞跳过请求体数据
+     */
+    public void skip(long len) throws IOException {
+        while (len > 0) {
+            while (!readBuf.hasRemaining()) {
+                fill(true);
+            }
+            int n = (int) Math.min(len, readBuf.remaining());
+            readBuf.position(readBuf.position() + n);
+            len -= n;
+        }
+    }
+
+    /**
+     * 请求处理完毕，读掉没有被读取的请求体，读 buffer 里剩下的就是下一个请求
+     *
+     * @throws IOException 请求体太大或者无法确定长度，调用者应该关闭连接
+     */
+    public void endRequest() throws IOException {
+        if (codec != null) {
+            codec.endRead(this);
         }
-        if (n > 0) read = true;
-        return read;
     }
 
 
@@ -218,32 +415,38 @@ public class InputBuffer implements Recyclable, BufferHolder {
      * 解析 GET 和 POST 请求参数
      */
     public void readAndParseParameters() {
+        if (request.isLoadedParameters()) return;
         // 设置已经装配好了 参数
         request.setLoadedParameters(true);
         // 1. 解析查询参数 GET
         if (request.getQuery() != null && request.getQuery().length > 0) { // 前面在解析请求行的时候，已经加入了
             parseParameters(request.getQuery()); // 将此数组里面的内容进行解析
-            return;
         }
 
         // 2. 解析 post 请求参数并且是以键值对进行传输
         if (!"POST".contentEquals(request.getMethod())) {
             return;
         }
+        // 只有表单格式的请求体才解析成参数，其他格式的请求体留给 Servlet 读取，没读的在请求结束时跳过
+        String contentType = request.getContentType();
+        if (contentType == null
+                || !contentType.toLowerCase().startsWith(BodyForm.X_WWW_FORM_URLENCODED.getForm())) {
+            return;
+        }
 
         // 3. 读取请求体数据
         body = null;
         try {
             // 请求体的 内容的长度
             int len = request.getContentLength();
-            if (len > 0) { // identity 传输编码
+            if (len > 0 || request.isChunked()) { // identity 或者 chunked 传输编码
                 if (len > maxPostSize) { // 请全体的内容超过限制 1M
                     request.setParseParamFail(true);
                     return;
                 }
                 // 将body设置
                 int n = readBody();
-                if (n == 0) { // readBody()方法里面有调用 setBody()方法
+                if (n <= 0 && !request.isChunked()) {
                     // 如果设置的body参数返回数据为0，那么说明解析请求体失败
                     request.setParseParamFail(true);
                     return;
@@ -256,45 +459,81 @@ public class InputBuffer implements Recyclable, BufferHolder {
         }
 
         // 5. 解析参数
-        parseParameters(body.getBytes(StandardCharsets.UTF_8));
+        if (body == null || body.isEmpty()) return;
+        parseParameters(body.getBytes(StandardCharsets.ISO_8859_1));
     }
 
     /**
-     * 读取请求体数据
-     * @return 因为是阻塞的，必定会返回一个大于 0 的数字，若返回 -1 连接肯定关闭了
+     * 读取整个请求体，用于解析表单参数，超过 maxPostSize 时抛出异常
+     * @return 请求体的字节数
      * @throws IOException
      */
     public int readBody() throws IOException {
-        if (codec != null) { // 如果有传入 解码类，就用解码类进行 解码操作，得到
-            return codec.doRead(this);
+        if (codec == null) {
+            return 0;
         }
-
-        return 0;
+        int len = request.getContentLength();
+        byte[] bytes = new byte[len > 0 ? len : 256];
+        int n = 0;
+        int r;
+        while ((r = codec.doRead(this, this)) >= 0) {
+            if (n + r > maxPostSize) {
+                throw new IOException("请求体超过 maxPostSize " + maxPostSize + "B");
+            }
+            if (n + r > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, n + r));
+            }
+            bodyView.get(bytes, n, r);
+            n += r;
+        }
+        body = new String(bytes, 0, n, StandardCharsets.ISO_8859_1);
+        return n;
     }
 
     /**
-     * 从底层通道读取数据，并返回一个与结果对应视图 ByteBuffer
+     * 读取一段请求体，由请求体解码器调用
+     * 数据不复制，holder 拿到的是读 buffer 的视图，只在下一次读取之前有效
      *
-     * @param buffHolder 持有读取数据的字节视图，如果参数值为 null，表示不需要数据，单纯的读取
-     * @return 返回实际读取的数据大小，-1 表示连接被关闭
-     * @throws IOException
+     * @param holder 接收数据视图
+     * @param max 最多读取的字节数，后面的数据可能属于管道化的下一个请求
+     * @return 读取的字节数，没有数据时阻塞等待，不会返回 0
+     * @throws EOFException 连接关闭了
      */
-    public int realReadBytes(BufferHolder buffHolder) throws IOException {
-        if (readBuf.position() >= readBuf.limit()) {
-            if(!fill()) {
-                buffHolder.setByteBuffer(null);
-                return -1;
-            }
-        }
-        int length = readBuf.remaining();
-        if (buffHolder != null) {
-            // dst 与 byteBuffer 底层共用一个 byte[]
-            buffHolder.setByteBuffer(readBuf.duplicate());  // duplicate创建一个新的缓存区，存储跟原来的缓冲区存储一样的内容
+    public int realReadBytes(BufferHolder holder, int max) throws IOException {
+        while (!readBuf.hasRemaining()) {
+            fill(true);
         }
-        readBuf.position(readBuf.limit());
-        return length;
+        int n = Math.min(max, readBuf.remaining());
+        ByteBuffer view = readBuf.duplicate();
+        view.limit(view.position() + n);
+        holder.setByteBuffer(view);
+        readBuf.position(readBuf.position() + n);
+        return n;
+    }
+
+    /**
+     * 把最后一次 realReadBytes 多拿的数据退回读 buffer，比如 chunked 请求体后面管道化的下一个请求
+     * 只能在下一次读取之前调用
+     *
+     * @param n 退回的字节数
+     */
+    public void unread(int n) {
+        readBuf.position(readBuf.position() - n);
     }
 
+    /**
+     * Servlet 读取请求体，没有请求体时直接返回 -1
+     *
+     * @param holder 接收数据视图，读取完毕时设置为 null
+     * @return 读取的字节数，-1 表示请求体读取完毕
+     */
+    public int doRead(BufferHolder holder) throws IOException {
+        if (codec == null) {
+            holder.setByteBuffer(null);
+            return -1;
+        }
+        return codec.doRead(this, holder);
+    }
 
     /**
      * 获取参数字符串，进行解析，并且放入request的 Parameters (HashMap<String, String>)
@@ -351,11 +590,23 @@ public class InputBuffer implements Recyclable, BufferHolder {
         request.recycle();
 
         status = ParseStatus.START;
-        parsingHeader = true;
-        readBuf.clear();
+        parsePos = 0;
+        tokenStart = 0;
+        headerCount = 0;
+        // 读 buffer 里剩下的是管道化的下一个请求，不清空
         body = null;
+        bodyView = null;
         codec = null;
-        reqHeaderEndIndex = 0;
+    }
+
+    /**
+     * 处理器被回收时调用，解除和通道的关联
+     * 通道可能已经关闭并把 buffer 归还给了 buffer 池，所以不能再操作 readBuf
+     */
+    public void detach() {
+        socket = null;
+        readBuf = null;
+        recycle();
     }
 
 }
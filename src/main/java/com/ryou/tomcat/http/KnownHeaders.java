@@ -0,0 +1,104 @@
+package com.ryou.tomcat.http;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 22:30
+ *
+ * 常用请求头的编号，{@link RawRequest} 里每个编号有一个固定的槽位
+ * + 解析请求头时按照 名称长度 + 第一个字节 找到候选，再逐字节比较，不计算哈希、不创建字符串
+ * + Servlet 按名称查找时也先查这张表，查到了直接取槽位，不用遍历所有请求头
+ * + 不在表里的请求头仍然按顺序查找
+ */
+public final class KnownHeaders {
+
+    public static final int HOST = 0;
+    public static final int CONNECTION = 1;
+    public static final int CONTENT_LENGTH = 2;
+    public static final int CONTENT_TYPE = 3;
+    public static final int TRANSFER_ENCODING = 4;
+    public static final int COOKIE = 5;
+    public static final int USER_AGENT = 6;
+    public static final int ACCEPT = 7;
+    public static final int ACCEPT_ENCODING = 8;
+    public static final int ACCEPT_LANGUAGE = 9;
+    public static final int ACCEPT_CHARSET = 10;
+    public static final int CACHE_CONTROL = 11;
+    public static final int PRAGMA = 12;
+    public static final int REFERER = 13;
+    public static final int ORIGIN = 14;
+    public static final int AUTHORIZATION = 15;
+    public static final int EXPECT = 16;
+    public static final int RANGE = 17;
+    public static final int IF_MATCH = 18;
+    public static final int IF_NONE_MATCH = 19;
+    public static final int IF_MODIFIED_SINCE = 20;
+    public static final int IF_UNMODIFIED_SINCE = 21;
+    public static final int UPGRADE = 22;
+    public static final int KEEP_ALIVE = 23;
+
+    /** 下标就是编号，都是小写的 */
+    private static final String[] NAMES = {"host", "connection", "content-length", "content-type",
+            "transfer-encoding", "cookie", "user-agent", "accept", "accept-encoding", "accept-language",
+            "accept-charset", "cache-control", "pragma", "referer", "origin", "authorization", "expect", "range",
+            "if-match", "if-none-match", "if-modified-since", "if-unmodified-since", "upgrade", "keep-alive"};
+
+    public static final int COUNT = NAMES.length;
+
+    private static final int MAX_LENGTH = 32;
+    /** 按名称长度分组的编号，同一长度下一般只有一两个 */
+    private static final int[][] BY_LENGTH = new int[MAX_LENGTH][];
+
+    static {
+        for (int len = 0; len < MAX_LENGTH; len++) {
+            int n = 0;
+            int[] ids = new int[COUNT];
+            for (int id = 0; id < COUNT; id++) {
+                if (NAMES[id].length() == len) ids[n++] = id;
+            }
+            BY_LENGTH[len] = Arrays.copyOf(ids, n);
+        }
+    }
+
+    private KnownHeaders() {
+    }
+
+    public static String name(int id) {
+        return NAMES[id];
+    }
+
+    /**
+     * 解析请求头时调用，名称已经转成小写
+     *
+     * @return 编号，不在表里时返回 -1
+     */
+    public static int lookup(ByteBuffer buffer, int start, int end) {
+        int len = end - start;
+        if (len <= 0 || len >= MAX_LENGTH) return -1;
+        int first = buffer.get(start);
+        for (int id : BY_LENGTH[len]) {
+            String name = NAMES[id];
+            if (name.charAt(0) != first) continue;
+            int i = 1;
+            while (i < len && buffer.get(start + i) == name.charAt(i)) i++;
+            if (i == len) return id;
+        }
+        return -1;
+    }
+
+    /**
+     * 按名称查找，不区分大小写
+     *
+     * @return 编号，不在表里时返回 -1
+     */
+    public static int lookup(String name) {
+        int len = name.length();
+        if (len == 0 || len >= MAX_LENGTH) return -1;
+        for (int id : BY_LENGTH[len]) {
+            if (NAMES[id].equalsIgnoreCase(name)) return id;
+        }
+        return -1;
+    }
+}
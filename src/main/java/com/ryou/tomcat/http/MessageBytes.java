@@ -0,0 +1,179 @@
+package com.ryou.tomcat.http;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 21:10
+ *
+ * 请求行、请求头里一段字节的视图，指向读 buffer 里的 [start, end)，不复制数据
+ * + 只有真正需要字符串时才按照 ISO-8859-1 转换，转换结果会缓存
+ * + 可以指定一组常量，内容相同时直接返回常量，比如请求方法、协议版本
+ * + 比较、解析数字直接在字节上进行，不需要转成字符串
+ * + 只在处理请求期间有效，读 buffer 移动数据之前要调用 {@link #detach()} 转成字符串
+ */
+public final class MessageBytes {
+
+    private ByteBuffer buffer;
+    private int start;
+    private int end;
+    /** 转换好的字符串，或者直接设置的字符串 */
+    private String str;
+    private final String[] constants;
+
+    public MessageBytes() {
+        this(null);
+    }
+
+    /**
+     * @param constants 内容和其中某个常量相同时，转换成字符串时直接返回这个常量
+     */
+    public MessageBytes(String[] constants) {
+        this.constants = constants;
+    }
+
+    /**
+     * 指向 buffer 里的 [start, end)
+     */
+    public void setBytes(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+        str = null;
+    }
+
+    public void setString(String str) {
+        buffer = null;
+        this.str = str;
+    }
+
+    public boolean isNull() {
+        return buffer == null && str == null;
+    }
+
+    public int getLength() {
+        if (buffer != null) return end - start;
+        return str == null ? 0 : str.length();
+    }
+
+    /**
+     * @param index 相对于开头的位置
+     */
+    public int byteAt(int index) {
+        if (buffer != null) return buffer.get(start + index) & 0xff;
+        return str.charAt(index);
+    }
+
+    /**
+     * @return 第一次出现的位置，没有时返回 -1
+     */
+    public int indexOf(char c) {
+        int len = getLength();
+        for (int i = 0; i < len; i++) {
+            if (byteAt(i) == c) return i;
+        }
+        return -1;
+    }
+
+    public boolean equals(String s) {
+        if (s == null || isNull()) return false;
+        if (buffer == null) return str.equals(s);
+        int len = s.length();
+        if (end - start != len) return false;
+        for (int i = 0; i < len; i++) {
+            if ((buffer.get(start + i) & 0xff) != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    public boolean equalsIgnoreCase(String s) {
+        if (s == null || isNull()) return false;
+        if (buffer == null) return str.equalsIgnoreCase(s);
+        int len = s.length();
+        if (end - start != len) return false;
+        for (int i = 0; i < len; i++) {
+            if (toLower(buffer.get(start + i) & 0xff) != toLower(s.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static int toLower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    /**
+     * 按照十进制解析成整数
+     *
+     * @throws NumberFormatException 不是合法的非负整数
+     */
+    public int getInt() {
+        long n = getLong();
+        if (n > Integer.MAX_VALUE) throw new NumberFormatException("数字太大：" + toString());
+        return (int) n;
+    }
+
+    /**
+     * 按照十进制解析成长整数
+     *
+     * @throws NumberFormatException 不是合法的非负整数
+     */
+    public long getLong() {
+        int len = getLength();
+        if (len == 0) throw new NumberFormatException("空的数字");
+        long n = 0;
+        for (int i = 0; i < len; i++) {
+            int c = byteAt(i);
+            if (c < '0' || c > '9') throw new NumberFormatException("不是合法的数字：" + toString());
+            if (n > (Long.MAX_VALUE - (c - '0')) / 10) throw new NumberFormatException("数字太大：" + toString());
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
+    /**
+     * 复制一份字节
+     */
+    public byte[] toBytes() {
+        int len = getLength();
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++) {
+            bytes[i] = (byte) byteAt(i);
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        if (str != null || buffer == null) return str;
+        int len = end - start;
+        if (constants != null) {
+            for (String constant : constants) {
+                if (equals(constant)) {
+                    str = constant;
+                    return str;
+                }
+            }
+        }
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = (char) (buffer.get(start + i) & 0xff);
+        }
+        str = new String(chars);
+        return str;
+    }
+
+    /**
+     * 转成字符串，不再引用读 buffer，读 buffer 里的数据被移动或者覆盖之后仍然有效
+     */
+    public void detach() {
+        if (buffer != null) {
+            toString();
+            buffer = null;
+        }
+    }
+
+    public void recycle() {
+        buffer = null;
+        str = null;
+    }
+}
@@ -25,9 +25,15 @@ public class OutputBuffer implements Recyclable {
 
     private ByteBuffer byteBuffer;
     private BodyCodec codec;
+    /** 响应体是否已经结束 */
+    private boolean ended = false;
 
     private NioChannel socket;
     private RawResponse resp;
+    /**
+     * chunked 响应中小块数据合并后一块的最大字节数，由 endpoint 配置
+     */
+    private int maxChunkSize = 8192;
 
     public OutputBuffer(RawResponse resp) {
         this.resp = resp;
@@ -35,7 +41,13 @@ public class OutputBuffer implements Recyclable {
     public void setSocket(NioChannel socket) {
         this.socket = socket;
         byteBuffer = socket.writeBuf();
-        byteBuffer.clear();
+        if (socket.getPoller() != null) {
+            maxChunkSize = socket.getPoller().getEndpoint().getMaxChunkSize();
+        }
+        // 上一个响应还有数据没发送完时，不能清空
+        if (!socket.hasPendingWrite()) {
+            byteBuffer.clear();
+        }
     }
     /**
      * 将响应头写入到缓冲区
@@ -102,15 +114,23 @@ public class OutputBuffer implements Recyclable {
         }
     }
 
-    public void end() throws IOException {
+    /**
+     * 响应结束，尝试把剩下的数据以非阻塞的方式发送出去
+     *
+     * @return 是否发送完毕，false 表示还有数据留在通道的写缓冲区，需要等待 OP_WRITE 继续发送
+     * @throws IOException
+     */
+    public boolean end() throws IOException {
         if (!resp.isCommitted()) {
             resp.action(ActionHook.ActionCode.COMMIT, null);
         }
 
-        if (codec != null) {
+        // CLOSE 和处理器都会调用 end，响应体的结尾（比如 chunked 的最后一块）只能写一次
+        if (codec != null && !ended) {
             codec.endWrite(this);
         }
-        flush();
+        ended = true;
+        return socket.flush(false);
     }
 
     public void write(byte[] b) throws IOException {
@@ -122,24 +142,57 @@ public class OutputBuffer implements Recyclable {
     // 写入通道待发送缓冲区
     public void write(ByteBuffer src, boolean flip) throws IOException {
         if (flip) src.flip();
-        while (src.hasRemaining()) {
-            // 无空间可供写入
-            if (byteBuffer.remaining() == 0) {
-                socket.flush(); // 把数据发送到客户端
-            }
+        if (src.remaining() <= byteBuffer.remaining()) {
+            // 放得下，复制到写缓冲区，和响应头一起发送
             byteBuffer.put(src);
+        } else {
+            // 放不下了，写缓冲区里的数据和 src 用一次聚集写发送，src 不再复制
+            socket.writeGathering(src);
+            // 在 poller 线程里发不出去时，数据留在写缓冲区，写缓冲区可能换成了更大的
+            byteBuffer = socket.writeBuf();
         }
         src.clear();
         // 以防超时
         socket.access();
     }
+
+    /**
+     * 按顺序写入多段数据，比如 chunk 头、数据、chunk 尾，各段保持独立的 buffer
+     * 写缓冲区放得下时复制进去，否则和写缓冲区里的数据一起用一次聚集写发送
+     *
+     * @param srcs 按顺序写入的数据
+     * @throws IOException
+     */
+    public void write(ByteBuffer... srcs) throws IOException {
+        long total = 0;
+        for (ByteBuffer src : srcs) {
+            total += src.remaining();
+        }
+        if (total <= byteBuffer.remaining()) {
+            for (ByteBuffer src : srcs) {
+                byteBuffer.put(src);
+            }
+        } else {
+            socket.writeGathering(srcs);
+            byteBuffer = socket.writeBuf();
+        }
+        socket.access();
+    }
     public void flush() throws IOException {
+        if (codec != null) {
+            codec.flushWrite(this);
+        }
         socket.flush();
+        byteBuffer = socket.writeBuf();
     }
     public void setBodyCodec(BodyCodec body) {
         this.codec = body;
     }
 
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
     public void setRawResponse(RawResponse response) {
         resp = response;
     }
@@ -147,7 +200,21 @@ public class OutputBuffer implements Recyclable {
     public void recycle() {
         resp.recycle();
 
-        byteBuffer.clear();
+        // 还有数据等待 OP_WRITE 发送时，不能清空
+        if (socket != null && !socket.hasPendingWrite()) {
+            byteBuffer.clear();
+        }
         codec = null;
+        ended = false;
+    }
+
+    /**
+     * 处理器被回收时调用，解除和通道的关联
+     * 通道可能已经关闭并把 buffer 归还给了 buffer 池，所以不能再操作 byteBuffer
+     */
+    public void detach() {
+        socket = null;
+        byteBuffer = null;
+        recycle();
     }
 }
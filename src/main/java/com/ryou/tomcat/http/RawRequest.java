@@ -1,37 +1,76 @@
 package com.ryou.tomcat.http;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * @Author: 汉高鼠刘邦
  * @Date: 2021/3/13 16:02
+ *
+ * 请求行和请求头都是指向读 buffer 的 {@link MessageBytes}，Servlet 用到时才转成字符串
+ * 常用的请求头（{@link KnownHeaders}）另外放在固定的槽位里，Content-Length、Connection、
+ * Transfer-Encoding 的值在解析完请求头时转换一次
  */
 public class RawRequest implements Recyclable {
+
+    /** 常见的请求方法和协议版本，转成字符串时直接使用常量 */
+    private static final String[] METHODS = {"GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE"};
+    private static final String[] PROTOCOLS = {"HTTP/1.1", "HTTP/1.0"};
+
     /**
      * 请求方法
      */
-    private String method; // GET POST ..
-    private String uri; // /xxx.jsp    /j2ee2/hello
+    private final MessageBytes method = new MessageBytes(METHODS); // GET POST ..
+    /** 没有解码的请求路径 */
+    private final MessageBytes uri = new MessageBytes(); // /xxx.jsp    /j2ee2/hello
+    /** 解码后的请求路径，第一次用到时生成 */
+    private String decodedUri;
 
+    private final MessageBytes queryString = new MessageBytes();
     private byte[] query; // 存储原始字节，对特殊的参数处理
     private int queryStartPos = -1;
 
-    private String protocol; // HTTP/1.1
+    private final MessageBytes protocol = new MessageBytes(PROTOCOLS); // HTTP/1.1
+
+    /** 请求头，名称已经是小写的，数组里的 MessageBytes 在请求之间复用 */
+    private MessageBytes[] headerNames = new MessageBytes[0];
+    private MessageBytes[] headerValues = new MessageBytes[0];
+    private int headerCount = 0;
+    /** 常用请求头的槽位，下标是 KnownHeaders 的编号，指向 headerValues 里第一次出现的值 */
+    private final MessageBytes[] knownHeaders = new MessageBytes[KnownHeaders.COUNT];
 
     private String contentType;
-    private int contentLength = -1;
+    private long contentLength = -1;
+    /** Content-Length 不是合法的数字，或者有多个值不同的 Content-Length */
+    private boolean contentLengthInvalid = false;
+    /** Content-Length 或 Transfer-Encoding 出现了不止一次，解析时要检查所有的值 */
+    private boolean framingHeaderRepeated = false;
+    /** Connection: close */
+    private boolean connectionClose = false;
+    /** Connection: keep-alive */
+    private boolean connectionKeepAlive = false;
+    /** Transfer-Encoding 的最后一个编码是 chunked */
+    private boolean chunked = false;
+    /** 有 Transfer-Encoding，但最后一个编码不是 chunked，或者 chunked 出现在中间，无法确定请求体在哪里结束 */
+    private boolean transferEncodingInvalid = false;
+    /** chunked 前面还有其他编码，例如 gzip, chunked */
+    private boolean transferCodingUnsupported = false;
     /**
      * 是否装载 参数
      */
     private boolean loadedParameters = false;
     private boolean parseParamFail = false;
     private HashMap<String, String> parameters = new HashMap<>();
-    private HashMap<String, String> headers = new HashMap<>();
 
     private HashMap<String, Object> attributes = new HashMap<>();
+    /** 容器映射的结果，由 Adapter 设置和使用，和请求一起回收复用 */
+    private Recyclable mappingData;
 
     /**
      * 通过 名字获取 请求头里面的内容
@@ -39,13 +78,214 @@ public class RawRequest implements Recyclable {
      * @return zh-CN,zh;q=0.9
      */
     public String getHeader(String name) {
-        return headers.get(name);
+        MessageBytes value = getHeaderBytes(name);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * 获取请求头的字节视图，不会转成字符串，名称不区分大小写
+     * @return 没有这个请求头时返回 null
+     */
+    public MessageBytes getHeaderBytes(String name) {
+        int id = KnownHeaders.lookup(name);
+        if (id >= 0) return knownHeaders[id];
+        for (int i = 0; i < headerCount; i++) {
+            if (headerNames[i].equalsIgnoreCase(name)) return headerValues[i];
+        }
+        return null;
     }
+
+    /**
+     * 常用请求头的字节视图
+     * @param id KnownHeaders 里的编号
+     * @return 没有这个请求头时返回 null
+     */
+    public MessageBytes getHeaderBytes(int id) {
+        return knownHeaders[id];
+    }
+
     public void addHeader(String name, String value) {
-        headers.put(name, value);
+        int i = nextHeader();
+        headerNames[i].setString(name);
+        headerValues[i].setString(value);
+        index(KnownHeaders.lookup(name), i);
     }
+
+    /**
+     * 解析请求头时调用，名称和值都指向读 buffer
+     */
+    public void addHeader(ByteBuffer buffer, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        int i = nextHeader();
+        headerNames[i].setBytes(buffer, nameStart, nameEnd);
+        headerValues[i].setBytes(buffer, valueStart, valueEnd);
+        index(KnownHeaders.lookup(buffer, nameStart, nameEnd), i);
+    }
+
+    /**
+     * 同名的请求头只记录第一个，和按顺序查找的结果一致
+     * 确定请求体长度的请求头重复时记录下来，解析时逐个检查
+     */
+    private void index(int id, int i) {
+        if (id < 0) return;
+        if (knownHeaders[id] == null) {
+            knownHeaders[id] = headerValues[i];
+        } else if (id == KnownHeaders.CONTENT_LENGTH || id == KnownHeaders.TRANSFER_ENCODING) {
+            framingHeaderRepeated = true;
+        }
+    }
+
+    /**
+     * 请求头解析完之后调用，转换 Content-Length、Connection、Transfer-Encoding 的值
+     * Content-Length 不是合法的数字、多个 Content-Length 的值不同时记录下来，由 Processor 返回 400
+     * 多行 Transfer-Encoding 按顺序拼成一个列表检查
+     */
+    public void parseKnownHeaders() {
+        MessageBytes value = knownHeaders[KnownHeaders.CONTENT_LENGTH];
+        if (value != null) {
+            contentLength = parseContentLength(value);
+        }
+        value = knownHeaders[KnownHeaders.CONNECTION];
+        connectionClose = value != null && value.equalsIgnoreCase("close");
+        connectionKeepAlive = value != null && value.equalsIgnoreCase("keep-alive");
+        MessageBytes transferEncoding = knownHeaders[KnownHeaders.TRANSFER_ENCODING];
+        boolean last = false; // 目前最后一个编码是不是 chunked
+        if (transferEncoding != null) {
+            last = parseTransferEncoding(transferEncoding, false);
+        }
+        if (framingHeaderRepeated) {
+            // 只看第一个的话，前置代理可能按照另一个值确定请求体的长度，可以被用来走私请求
+            for (int i = 0; i < headerCount; i++) {
+                value = headerValues[i];
+                if (value == knownHeaders[KnownHeaders.CONTENT_LENGTH]
+                        || value == knownHeaders[KnownHeaders.TRANSFER_ENCODING]) {
+                    continue;
+                }
+                if (headerNames[i].equalsIgnoreCase("content-length")) {
+                    if (parseContentLength(value) != contentLength) contentLengthInvalid = true;
+                } else if (headerNames[i].equalsIgnoreCase("transfer-encoding")) {
+                    last = parseTransferEncoding(value, last);
+                }
+            }
+        }
+        if (transferEncoding != null) {
+            if (!last) transferEncodingInvalid = true;
+            chunked = !transferEncodingInvalid;
+        }
+    }
+
+    /**
+     * @return Content-Length 的值，不是合法的数字时返回 -1 并记录下来
+     */
+    private long parseContentLength(MessageBytes value) {
+        try {
+            return value.getLong();
+        } catch (NumberFormatException e) {
+            contentLengthInvalid = true;
+            return -1;
+        }
+    }
+
+    /**
+     * Transfer-Encoding 是逗号分隔的编码列表，按顺序应用，请求体的长度只能由最后一个 chunked 确定
+     * 只认完全等于 chunked 的值时，gzip, chunked 这样的请求会被当作没有请求体，
+     * 请求体被当成下一个请求解析，可以被用来走私请求
+     *
+     * @param last 前面几行 Transfer-Encoding 的最后一个编码是不是 chunked
+     * @return 到这一行为止最后一个编码是不是 chunked
+     */
+    private boolean parseTransferEncoding(MessageBytes value, boolean last) {
+        int len = value.getLength();
+        int i = 0;
+        while (i < len) {
+            int start = i;
+            while (i < len && value.byteAt(i) != ',') i++;
+            int end = i++;
+            while (start < end && isWhitespace(value.byteAt(start))) start++;
+            while (end > start && isWhitespace(value.byteAt(end - 1))) end--;
+            if (start == end) continue; // 列表里允许空元素
+            // chunked 只能出现一次，而且必须是最后一个
+            if (last) transferEncodingInvalid = true;
+            last = regionEqualsIgnoreCase(value, start, end, "chunked");
+            if (!last && !regionEqualsIgnoreCase(value, start, end, "identity")) {
+                transferCodingUnsupported = true;
+            }
+        }
+        return last;
+    }
+
+    private static boolean isWhitespace(int b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static boolean regionEqualsIgnoreCase(MessageBytes value, int start, int end, String s) {
+        if (end - start != s.length()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            int c = value.byteAt(start + i);
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            if (c != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private int nextHeader() {
+        if (headerCount == headerNames.length) {
+            int size = Math.max(16, headerCount * 2);
+            headerNames = Arrays.copyOf(headerNames, size);
+            headerValues = Arrays.copyOf(headerValues, size);
+            for (int i = headerCount; i < size; i++) {
+                headerNames[i] = new MessageBytes();
+                headerValues[i] = new MessageBytes();
+            }
+        }
+        return headerCount++;
+    }
+
+    /**
+     * 删除所有同名的请求头
+     * @return 第一个的值，没有这个请求头时返回 null
+     */
     public String removeHeader(String name) {
-        return headers.remove(name);
+        String value = null;
+        int i = 0;
+        while (i < headerCount) {
+            if (!headerNames[i].equalsIgnoreCase(name)) {
+                i++;
+                continue;
+            }
+            if (value == null) value = headerValues[i].toString();
+            // 把后面的请求头往前移，被删掉的 MessageBytes 放到最后复用
+            MessageBytes removedName = headerNames[i];
+            MessageBytes removedValue = headerValues[i];
+            System.arraycopy(headerNames, i + 1, headerNames, i, headerCount - i - 1);
+            System.arraycopy(headerValues, i + 1, headerValues, i, headerCount - i - 1);
+            headerCount--;
+            removedName.recycle();
+            removedValue.recycle();
+            headerNames[headerCount] = removedName;
+            headerValues[headerCount] = removedValue;
+        }
+        int id = KnownHeaders.lookup(name);
+        if (id >= 0) knownHeaders[id] = null;
+        return value;
+    }
+
+    public int getHeaderCount() {
+        return headerCount;
+    }
+
+    /**
+     * 读 buffer 里的数据要被移动之前调用，比如读取请求体时 compact，
+     * 请求行和请求头都转成字符串，不再引用读 buffer
+     */
+    public void detachBuffer() {
+        method.detach();
+        uri.detach();
+        queryString.detach();
+        protocol.detach();
+        for (int i = 0; i < headerCount; i++) {
+            headerNames[i].detach();
+            headerValues[i].detach();
+        }
     }
 
     private ActionHook hook;
@@ -66,6 +306,23 @@ public class RawRequest implements Recyclable {
                 hook.action(action, param);
         }
     }
+
+    /**
+     * 读取一段请求体，holder 拿到的是读 buffer 的视图，下一次读取之前有效
+     * @return 读取的字节数，-1 表示请求体读取完毕
+     * @throws IOException 连接关闭了，请求体格式错误或者超过大小限制
+     */
+    public int doRead(BufferHolder holder) throws IOException {
+        holder.setByteBuffer(null);
+        try {
+            action(ActionHook.ActionCode.READ_BODY, holder);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        ByteBuffer view = holder.getByteBuffer();
+        return view == null ? -1 : view.remaining();
+    }
+
     public boolean isParseParamFail() {
         return parseParamFail;
     }
@@ -83,7 +340,8 @@ public class RawRequest implements Recyclable {
     public String getContentType() {
         if (contentType == null) {
             // 有可能含有 ; charset=utf-8
-            contentType = headers.get("content-type");
+            MessageBytes value = knownHeaders[KnownHeaders.CONTENT_TYPE];
+            contentType = value == null ? null : value.toString();
         }
         return contentType;
     }
@@ -92,12 +350,32 @@ public class RawRequest implements Recyclable {
     public void recycle() {
         contentType = null;
         contentLength = -1;
+        contentLengthInvalid = false;
+        framingHeaderRepeated = false;
+        connectionClose = false;
+        connectionKeepAlive = false;
+        chunked = false;
+        transferEncodingInvalid = false;
+        transferCodingUnsupported = false;
 
         loadedParameters = false;
         parseParamFail = false;
         parameters.clear();
-        headers.clear();
+        for (int i = 0; i < headerCount; i++) {
+            headerNames[i].recycle();
+            headerValues[i].recycle();
+        }
+        headerCount = 0;
+        Arrays.fill(knownHeaders, null);
         attributes.clear();
+        if (mappingData != null) {
+            mappingData.recycle();
+        }
+        method.recycle();
+        uri.recycle();
+        decodedUri = null;
+        queryString.recycle();
+        protocol.recycle();
         queryStartPos = -1;
         if (query != null) {
             query = null;
@@ -116,37 +394,110 @@ public class RawRequest implements Recyclable {
         return StandardCharsets.UTF_8; // 默认 utf-8 编码
     }
 
+    /**
+     * @return 没有 Content-Length 或者超过 int 范围时返回 -1
+     */
     public int getContentLength() {
-        if (contentLength > 0) return contentLength;
+        return contentLength > Integer.MAX_VALUE ? -1 : (int) contentLength;
+    }
 
-        String v = getHeader("content-length");
-        if (v != null) {
-            return Integer.parseInt(v);
-        }
-        return -1;
+    public long getContentLengthLong() {
+        return contentLength;
+    }
+
+    public boolean isContentLengthInvalid() {
+        return contentLengthInvalid;
+    }
+
+    public boolean isConnectionClose() {
+        return connectionClose;
+    }
+
+    public boolean isConnectionKeepAlive() {
+        return connectionKeepAlive;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    public boolean isTransferEncodingInvalid() {
+        return transferEncodingInvalid;
+    }
+
+    public boolean isTransferCodingUnsupported() {
+        return transferCodingUnsupported;
     }
 
     // Getter&Setter
     public String getMethod() {
-        return method;
+        return method.toString();
     }
     public void setMethod(String method) {
-        this.method = method;
+        this.method.setString(method);
+    }
+    public MessageBytes method() {
+        return method;
     }
 
     /**
      * /j2ee2/hello
+     * 请求路径中的 %xx 按照 UTF-8 解码
      * @return /j2ee2/hello
      */
     public String getUri() {
-        return uri;
+        if (decodedUri == null && !uri.isNull()) {
+            decodedUri = decodeUri(uri);
+        }
+        return decodedUri;
     }
     public void setUri(String uri) {
-        this.uri = uri;
+        this.uri.setString(uri);
+        decodedUri = uri;
+    }
+    /**
+     * 没有解码的请求路径
+     */
+    public MessageBytes uri() {
+        return uri;
+    }
+
+    /**
+     * 没有 %xx 时直接转成字符串，否则按照 UTF-8 解码
+     */
+    private static String decodeUri(MessageBytes uri) {
+        if (uri.indexOf('%') < 0) return uri.toString();
+        int len = uri.getLength();
+        byte[] bytes = new byte[len];
+        int n = 0;
+        for (int i = 0; i < len; i++) {
+            int b = uri.byteAt(i);
+            if (b == '%' && i + 2 < len) {
+                int hi = Character.digit(uri.byteAt(i + 1), 16);
+                int lo = Character.digit(uri.byteAt(i + 2), 16);
+                if (hi >= 0 && lo >= 0) {
+                    bytes[n++] = (byte) ((hi << 4) + lo);
+                    i += 2;
+                    continue;
+                }
+            }
+            bytes[n++] = (byte) b;
+        }
+        return new String(bytes, 0, n, StandardCharsets.UTF_8);
     }
+
+    /**
+     * 查询参数的原始字节，第一次用到时从读 buffer 复制
+     */
     public byte[] getQuery() {
+        if (query == null && !queryString.isNull()) {
+            query = queryString.toBytes();
+        }
         return query;
     }
+    public MessageBytes queryString() {
+        return queryString;
+    }
     public int getQueryStartPos() {
         return queryStartPos;
     }
@@ -157,10 +508,13 @@ public class RawRequest implements Recyclable {
         this.query = query;
     }
     public String getProtocol() {
-        return protocol;
+        return protocol.toString();
     }
     public void setProtocol(String protocol) {
-        this.protocol = protocol;
+        this.protocol.setString(protocol);
+    }
+    public MessageBytes protocol() {
+        return protocol;
     }
     public void setContentType(String contentType) {
         this.contentType = contentType;
@@ -187,6 +541,12 @@ public class RawRequest implements Recyclable {
     public void setAttribute(String name, Object o) {
         attributes.put(name, o);
     }
+    public Recyclable getMappingData() {
+        return mappingData;
+    }
+    public void setMappingData(Recyclable mappingData) {
+        this.mappingData = mappingData;
+    }
     public HashMap<String, Object> getAttributes() {
         return attributes;
     }
@@ -197,13 +557,12 @@ public class RawRequest implements Recyclable {
         builder.append("Request headers: \r\n");
         builder.append(method).append(" ");
         builder.append(uri);
-        if (query != null && query.length > 0) {
-
-            builder.append("?").append(new String(query));
+        if (!queryString.isNull()) {
+            builder.append("?").append(queryString);
         }
         builder.append(" ").append(protocol).append("\r\n");
-        for (Map.Entry<String, String> header : headers.entrySet()) {
-            builder.append(header.getKey()).append(":").append(header.getValue()).append("\r\n");
+        for (int i = 0; i < headerCount; i++) {
+            builder.append(headerNames[i]).append(":").append(headerValues[i]).append("\r\n");
         }
         builder.append("\r\n");
         for (Map.Entry<String, String> param : parameters.entrySet()) {
@@ -129,7 +129,7 @@ public class RawResponse implements Recyclable {
         contentLength = -1;
         headers.clear();
         status = 200;
-        message = "";
+        message = null;
     }
 
     @Override
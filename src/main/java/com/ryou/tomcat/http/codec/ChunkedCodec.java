@@ -1,10 +1,12 @@
 package com.ryou.tomcat.http.codec;
 
 import com.ryou.tomcat.http.BodyCodec;
+import com.ryou.tomcat.http.BufferHolder;
+import com.ryou.tomcat.http.HttpToken;
 import com.ryou.tomcat.http.InputBuffer;
 import com.ryou.tomcat.http.OutputBuffer;
+import com.ryou.tomcat.http.Recyclable;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -13,44 +15,373 @@ import java.nio.ByteBuffer;
  * @Date: 2021/3/13 17:06
  *
  *
- * 请求体的解析 要根据Content-type来进行
- * multipart/form-data
- * application/x-www-form-urlencoded
- * text/plain
- * application/json
+ * chunked 传输编码
  *
- * binary：二进制文件
+ * 解码请求体：[长度的十六进制 [;扩展] CRLF] [数据] [CRLF] ... [0 CRLF] [尾部请求头] [CRLF]
+ * + 状态机逐个字节解析块头、块尾和尾部请求头，数据不够时停在任意一个字节上，读到更多数据后继续
+ * + 块数据不复制，直接把读 buffer 的视图交给调用者，请求体再大也不会整个缓存起来
+ * + 请求体结束后多读的数据（管道化的下一个请求）退回读 buffer
+ * + 尾部请求头只检查大小后跳过；解码后的请求体超过 maxBodySize 时抛出异常
+ *
+ * 编码响应体：每次写入的数据编码成一块
+ * + 块长度的十六进制查表生成，不创建字符串
+ * + 小于 maxChunkSize 的数据先合并起来，凑够一块、Servlet flush 或者响应结束时再写出，
+ *   大块数据直接单独成块，不复制
+ * + 响应结束时最后合并的数据、块尾和结束块一起写入，一次系统调用发送
  */
-public class ChunkedCodec extends BodyDecodeContext implements BodyCodec {
+public class ChunkedCodec implements BodyCodec, BufferHolder, Recyclable {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    /** 最后一块数据的块尾 + 结束块 */
+    private static final byte[] CRLF_END_CHUNK = new byte[HttpToken.CRLF.length + HttpToken.END_CHUNK.length];
+
+    static {
+        System.arraycopy(HttpToken.CRLF, 0, CRLF_END_CHUNK, 0, HttpToken.CRLF.length);
+        System.arraycopy(HttpToken.END_CHUNK, 0, CRLF_END_CHUNK, HttpToken.CRLF.length, HttpToken.END_CHUNK.length);
+    }
+
+    /** 块长度最多 15 位十六进制，不会超出 long 的范围 */
+    private static final int MAX_SIZE_DIGITS = 15;
+    /** 块扩展的最大字节数，扩展内容会被忽略 */
+    private static final int MAX_EXTENSION_SIZE = 4096;
+
+    /** 跳过请求体时不需要数据 */
+    private static final BufferHolder DISCARD = new BufferHolder() {
+        @Override
+        public void setByteBuffer(ByteBuffer buffer) {
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer() {
+            return null;
+        }
+    };
+
+    /**
+     * 请求体的解码状态
+     */
+    private enum State {
+        SIZE, // 块长度
+        EXTENSION, // 块扩展，直到行尾
+        SIZE_LF, // 块头读到了 CR，等待 LF
+        DATA, // 块数据
+        DATA_CR, // 块数据后面的 CRLF
+        DATA_LF, // 块数据后面读到了 CR，等待 LF
+        TRAILER_START, // 尾部请求头的行首，空行表示请求体结束
+        TRAILER, // 尾部请求头，直到行尾
+        TRAILER_LF, // 结尾的空行读到了 CR，等待 LF
+        DONE // 请求体结束
+    }
 
-    private String contentType;
+    /** 块头：长度的十六进制 + CRLF，int 最多 8 位十六进制 */
+    private final ByteBuffer chunkHeader = ByteBuffer.allocate(10);
+    private final ByteBuffer chunkTrailer = ByteBuffer.wrap(HttpToken.CRLF);
+    private final ByteBuffer endChunk = ByteBuffer.wrap(HttpToken.END_CHUNK);
+    private final ByteBuffer lastTrailer = ByteBuffer.wrap(CRLF_END_CHUNK);
+    /** 小块数据合并后一块的最大字节数，不大于 0 时不合并 */
+    private int maxChunkSize = 8192;
+    /** 合并中的数据，第一次合并时分配，写模式 */
+    private ByteBuffer pending;
 
-    public ChunkedCodec(String contentType) {
-        this.contentType = contentType;
+    private State state = State.SIZE;
+    /** 从读 buffer 拿到的还没解码的原始数据 */
+    private ByteBuffer chunk;
+    /** 当前块剩余的数据长度 */
+    private long chunkRemaining = 0;
+    private int sizeDigits = 0;
+    private int extensionSize = 0;
+    private int trailerSize = 0;
+    /** 已经解码的请求体长度 */
+    private long bodySize = 0;
+    /** 请求体的最大长度，-1 表示不限制 */
+    private long maxBodySize = -1;
+    /** 尾部请求头的最大字节数 */
+    private int maxTrailerSize = 8192;
+    /** 解码出错后，之后的读取都失败 */
+    private IOException error;
+
+    /**
+     * 编码响应体
+     */
+    public ChunkedCodec() {
+    }
+
+    /**
+     * 解码请求体
+     *
+     * @param maxBodySize 解码后请求体的最大长度，-1 表示不限制
+     * @param maxTrailerSize 尾部请求头的最大字节数
+     */
+    public ChunkedCodec(long maxBodySize, int maxTrailerSize) {
+        this.maxBodySize = maxBodySize;
+        this.maxTrailerSize = maxTrailerSize;
     }
 
     @Override
-    public int doRead(InputBuffer input) throws IOException {
+    public int doRead(InputBuffer input, BufferHolder holder) throws IOException {
+        if (error != null) {
+            throw new IOException("chunked 请求体格式错误", error);
+        }
+        try {
+            return decode(input, holder);
+        } catch (IOException e) {
+            error = e;
+            throw e;
+        }
+    }
+
+    private int decode(InputBuffer input, BufferHolder holder) throws IOException {
+        while (state != State.DATA) {
+            if (state == State.DONE) {
+                // 请求体结束了，多读的数据退回读 buffer
+                if (chunk != null && chunk.hasRemaining()) {
+                    input.unread(chunk.remaining());
+                }
+                chunk = null;
+                holder.setByteBuffer(null);
+                return -1;
+            }
+            if (chunk == null || !chunk.hasRemaining()) {
+                input.realReadBytes(this, Integer.MAX_VALUE);
+            }
+            parseFraming();
+        }
+        if (!chunk.hasRemaining()) {
+            input.realReadBytes(this, Integer.MAX_VALUE);
+        }
+        int n = (int) Math.min(chunk.remaining(), chunkRemaining);
+        ByteBuffer data = chunk.duplicate();
+        data.limit(data.position() + n);
+        chunk.position(chunk.position() + n);
+        chunkRemaining -= n;
+        if (chunkRemaining == 0) {
+            state = State.DATA_CR;
+        }
+        holder.setByteBuffer(data);
+        return n;
+    }
+
+    /**
+     * 解析块头、块尾和尾部请求头，直到遇到块数据、请求体结束或者用完 chunk 里的数据
+     * 行尾的 CR 可以省略，和解析请求头一样
+     */
+    private void parseFraming() throws IOException {
+        while (chunk.hasRemaining() && state != State.DATA && state != State.DONE) {
+            int b = chunk.get() & 0xff;
+            switch (state) {
+                case SIZE:
+                    int digit = Character.digit(b, 16);
+                    if (digit >= 0) {
+                        if (++sizeDigits > MAX_SIZE_DIGITS) throw badChunk("块长度太大");
+                        chunkRemaining = (chunkRemaining << 4) | digit;
+                    } else if (sizeDigits == 0) {
+                        throw badChunk("块长度不是十六进制数字");
+                    } else if (b == ';' || b == ' ' || b == '\t') {
+                        state = State.EXTENSION;
+                    } else if (b == '\r') {
+                        state = State.SIZE_LF;
+                    } else if (b == '\n') {
+                        endSizeLine();
+                    } else {
+                        throw badChunk("块长度不是十六进制数字");
+                    }
+                    break;
+                case EXTENSION:
+                    if (b == '\r') {
+                        state = State.SIZE_LF;
+                    } else if (b == '\n') {
+                        endSizeLine();
+                    } else if (++extensionSize > MAX_EXTENSION_SIZE) {
+                        throw badChunk("块扩展太长");
+                    }
+                    break;
+                case SIZE_LF:
+                    if (b != '\n') throw badChunk("块长度后面缺少换行");
+                    endSizeLine();
+                    break;
+                case DATA_CR:
+                    if (b == '\r') {
+                        state = State.DATA_LF;
+                    } else if (b == '\n') {
+                        nextChunk();
+                    } else {
+                        throw badChunk("块数据后面缺少 CRLF");
+                    }
+                    break;
+                case DATA_LF:
+                    if (b != '\n') throw badChunk("块数据后面缺少换行");
+                    nextChunk();
+                    break;
+                case TRAILER_START:
+                    if (b == '\r') {
+                        state = State.TRAILER_LF;
+                    } else if (b == '\n') {
+                        state = State.DONE;
+                    } else {
+                        countTrailer();
+                        state = State.TRAILER;
+                    }
+                    break;
+                case TRAILER:
+                    countTrailer();
+                    if (b == '\n') state = State.TRAILER_START;
+                    break;
+                case TRAILER_LF:
+                    if (b != '\n') throw badChunk("请求体结尾缺少换行");
+                    state = State.DONE;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 块头解析完了，长度为 0 的块后面是尾部请求头
+     */
+    private void endSizeLine() throws IOException {
+        if (chunkRemaining == 0) {
+            state = State.TRAILER_START;
+            return;
+        }
+        bodySize += chunkRemaining;
+        if (maxBodySize >= 0 && bodySize > maxBodySize) {
+            throw new IOException("chunked 请求体超过 maxBodySize " + maxBodySize + "B");
+        }
+        state = State.DATA;
+    }
 
-        BufferedReader bufferedReader = input.getBufferedReader();
+    private void nextChunk() {
+        state = State.SIZE;
+        chunkRemaining = 0;
+        sizeDigits = 0;
+        extensionSize = 0;
+    }
 
-        bufferedReader.lines().forEach(System.out::println);
+    private void countTrailer() throws IOException {
+        if (++trailerSize > maxTrailerSize) {
+            throw badChunk("尾部请求头超过 " + maxTrailerSize + "B");
+        }
+    }
 
-        return 0;
+    private IOException badChunk(String message) {
+        return new IOException("chunked 请求体格式错误：" + message);
     }
 
+    /**
+     * 按照 chunked 格式跳过剩下的请求体，下一个请求才能从正确的位置开始解析
+     * @throws IOException 格式错误，或者剩下的数据超过 maxSwallowSize，关闭连接
+     */
     @Override
     public void endRead(InputBuffer input) throws IOException {
+        long swallowed = 0;
+        int n;
+        while ((n = doRead(input, DISCARD)) >= 0) {
+            swallowed += n;
+            if (swallowed > maxSwallowSize) {
+                throw new IOException("未读取的请求体超过 " + maxSwallowSize + "B");
+            }
+        }
+    }
+
+    /**
+     * 从读 buffer 拿到的原始数据
+     */
+    @Override
+    public void setByteBuffer(ByteBuffer buffer) {
+        chunk = buffer;
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer() {
+        return chunk;
+    }
 
+    public void setMaxChunkSize(int maxChunkSize) {
+        this.maxChunkSize = maxChunkSize;
     }
 
+    /**
+     * 每块数据编码成 [长度的十六进制 CRLF] [数据] [CRLF] 三段，
+     * 交给 OutputBuffer 按顺序写入，大块数据本身不需要复制到另外的 buffer 里拼接
+     * 小块数据先合并到 pending，凑够 maxChunkSize 再写出
+     */
     @Override
     public void doWrite(OutputBuffer output, ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        if (len == 0) return;
+        if (pending != null && pending.position() > 0 && pending.position() + len > maxChunkSize) {
+            writePending(output, chunkTrailer);
+        }
+        if (len < maxChunkSize) {
+            if (pending == null || pending.capacity() != maxChunkSize) {
+                pending = ByteBuffer.allocate(maxChunkSize);
+            }
+            pending.put(src);
+            src.clear();
+            return;
+        }
+        putChunkHeader(len);
+        chunkTrailer.clear();
+        output.write(chunkHeader, src, chunkTrailer);
+        src.clear();
+    }
 
+    /**
+     * Servlet flush 时把合并中的数据写出，保证已经写入的数据都能发送出去
+     */
+    @Override
+    public void flushWrite(OutputBuffer output) throws IOException {
+        if (pending != null && pending.position() > 0) {
+            writePending(output, chunkTrailer);
+        }
     }
 
+    /**
+     * 写入最后一个长度为 0 的块，表示响应体结束
+     * 还有合并中的数据时，和它的块尾一起写入
+     */
     @Override
     public void endWrite(OutputBuffer output) throws IOException {
+        if (pending != null && pending.position() > 0) {
+            writePending(output, lastTrailer);
+        } else {
+            endChunk.clear();
+            output.write(endChunk);
+        }
+    }
 
+    private void writePending(OutputBuffer output, ByteBuffer trailer) throws IOException {
+        pending.flip();
+        putChunkHeader(pending.remaining());
+        trailer.clear();
+        output.write(chunkHeader, pending, trailer);
+        pending.clear();
+    }
+
+    /**
+     * 查表生成块长度的十六进制，去掉前导 0
+     */
+    private void putChunkHeader(int len) {
+        chunkHeader.clear();
+        int shift = 28;
+        while (shift > 0 && (len >>> shift) == 0) {
+            shift -= 4;
+        }
+        for (; shift >= 0; shift -= 4) {
+            chunkHeader.put(HEX[(len >>> shift) & 0xf]);
+        }
+        chunkHeader.put(HttpToken.CR).put(HttpToken.LF);
+        chunkHeader.flip();
+    }
+
+    /**
+     * 响应之间复用编码器，丢掉上一个响应没写出的数据
+     */
+    @Override
+    public void recycle() {
+        if (pending != null) {
+            pending.clear();
+        }
     }
 }
@@ -1,14 +1,10 @@
 package com.ryou.tomcat.http.codec;
 
 import com.ryou.tomcat.http.BodyCodec;
+import com.ryou.tomcat.http.BufferHolder;
 import com.ryou.tomcat.http.InputBuffer;
 import com.ryou.tomcat.http.OutputBuffer;
-import com.ryou.tomcat.http.codec.identityBody.IdentityApplicationFormUrlencoded;
-import com.ryou.tomcat.http.codec.identityBody.IdentityApplicationJson;
-import com.ryou.tomcat.http.codec.identityBody.IdentityMultipartFormData;
-import com.sun.xml.internal.org.jvnet.mimepull.DecodingException;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -17,7 +13,7 @@ import java.nio.ByteBuffer;
  * @Date: 2021/3/13 17:06
  *
  */
-public class IdentityCodec extends BodyDecodeContext implements BodyCodec {
+public class IdentityCodec implements BodyCodec {
     private int contentLength = -1; // 总长度
     private int remaining; // 剩余字节数
 
@@ -30,63 +26,34 @@ public class IdentityCodec extends BodyDecodeContext implements BodyCodec {
         this.contentType = contentType;
     }
 
+    /**
+     * 从读 buffer 里读取最多 remaining 个字节，后面的数据属于管道化的下一个请求
+     */
     @Override
-    public int doRead(InputBuffer input) throws IOException {
-        int result = -1;
-
-
-        BufferedReader bufferedReader = input.getBufferedReader();
-
-        String params = null;
-        // 按照contentType进行分配解析方式
-        if (contentType.equalsIgnoreCase(BodyForm.X_WWW_FORM_URLENCODED.getForm())) {
-            setStrategy(new IdentityApplicationFormUrlencoded());
-            // 从请求体获取的 参数 ：格式为  ss=ssd&hjg=678&ds=r&
-            params = decodeMethod(bufferedReader, contentLength);
-        }
-        else if (contentType.equalsIgnoreCase(BodyForm.APPLICATION_JSON.getForm())) {
-            setStrategy(new IdentityApplicationJson());
-            params = decodeMethod(bufferedReader, contentLength);
-
-            throw new DecodingException("json格式的还未实现");
-        }
-        else {
-            String[] split = contentType.split("; ");
-            String str = "boundary=";
-            if (split.length == 2 && split[0].equalsIgnoreCase(BodyForm.FORM_DATA.getForm()) && split[1].startsWith(str)) {
-                String boundary = split[1].replace(str, "");
-                // 实例化解析策略
-                setStrategy(new IdentityMultipartFormData(boundary));
-                // 调用解析方法
-                params = decodeMethod(bufferedReader, contentLength);
-
-                throw new DecodingException("还未实现FORM_DATA");
-
-            }
-            else {
-                // 如果请求体的格式不是上面三种中的一种，就抛出异常
-                throw new DecodingException("请求体的格式无法进行解析......");
-            }
+    public int doRead(InputBuffer input, BufferHolder holder) throws IOException {
+        if (remaining <= 0) {
+            holder.setByteBuffer(null);
+            return -1;
         }
-
-        if (params != null){
-//            input.setBody(params);
-            // 设置参数的数据成功，返回参数的长度
-            result = params.length();
-        }
-
-
-        return result;
+        int n = input.realReadBytes(holder, remaining);
+        remaining -= n;
+        return n;
     }
 
     /**
-     * TODO  ????
+     * 跳过没有被读取的请求体，下一个请求才能从正确的位置开始解析
      * @param input 关联的 HTTP 请求解析类
-     * @throws IOException
+     * @throws IOException 剩下的数据超过 maxSwallowSize，关闭连接
      */
     @Override
     public void endRead(InputBuffer input) throws IOException {
-
+        if (remaining > maxSwallowSize) {
+            throw new IOException("未读取的请求体 [" + remaining + "B] 超过 " + maxSwallowSize + "B");
+        }
+        if (remaining > 0) {
+            input.skip(remaining);
+            remaining = 0;
+        }
     }
 
     @Override
@@ -95,6 +62,10 @@ public class IdentityCodec extends BodyDecodeContext implements BodyCodec {
         output.write(src);
     }
 
+    @Override
+    public void flushWrite(OutputBuffer output) throws IOException {
+    }
+
     @Override
     public void endWrite(OutputBuffer output) throws IOException {
     }
@@ -32,8 +32,12 @@ public class IdentityApplicationFormUrlencoded implements ParsesRequestBody {
     @Override
     public String decodeMethod(BufferedReader bufferedReader, int contentLength) throws IOException {
         char[] chars = new char[contentLength];
-        bufferedReader.read(chars);
+        int n = 0;
+        int r;
+        while (n < chars.length && (r = bufferedReader.read(chars, n, chars.length - n)) > 0) {
+            n += r;
+        }
 
-        return new String(chars);
+        return new String(chars, 0, n);
     }
 }
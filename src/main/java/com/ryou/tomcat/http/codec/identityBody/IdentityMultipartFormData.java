@@ -1,7 +1,6 @@
 package com.ryou.tomcat.http.codec.identityBody;
 
 import com.ryou.tomcat.http.codec.ParsesRequestBody;
-import com.sun.xml.internal.org.jvnet.mimepull.DecodingException;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -44,7 +43,7 @@ public class IdentityMultipartFormData implements ParsesRequestBody {
         String content = new String(chars);
         if (content.contains("Content-Type:")) {
             // TODO 现在只支持Text方式
-            throw new DecodingException("此解析方式 现在只支持Text");
+            throw new IOException("此解析方式 现在只支持Text");
         }
         String[] split = content.split(boundary);
         for (String str : split) {
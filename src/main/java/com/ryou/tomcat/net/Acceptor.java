@@ -6,71 +6,200 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
 /**
  * @Author: 汉高鼠刘邦
  * @Date: 2021/3/7 12:09
  * Server socket acceptor thread. 接收socket连接的线程
+ *
+ * 每个 Acceptor 有自己的 Selector，监听通道设置为非阻塞的，并在这个 Selector 上注册 OP_ACCEPT
+ * + 支持 SO_REUSEPORT 时，每个 Acceptor 有自己的监听通道，由内核把连接分散到各个监听通道
+ * + 不支持时，所有 Acceptor 共享同一个监听通道，没抢到连接的 Acceptor accept 返回 null
+ * 每次被唤醒后批量接收连接，直到没有新的连接或者达到一批的上限
+ * 每个连接都要先占用一个连接名额，达到最大连接数时暂停接收，直到有连接关闭
  */
 public class Acceptor implements Runnable {
 
     private final static Logger log = (Logger) LoggerFactory.getLogger(Acceptor.class);
     /**
      * 读写缓冲区的大小
+     * 读缓冲区从 4KB 开始，请求头放不下时按池的级别扩大，最大到 maxHttpHeaderSize
      */
-    protected int readBufSize = 8192;
+    protected int readBufSize = 4096;
     protected int writeBufSize = 8192;
 
+    /** 每次唤醒最多接收的连接数，避免一直接收连接而饿死其他 Acceptor */
+    private static final int MAX_ACCEPT_BATCH = 64;
+    /** accept 出错（比如文件描述符耗尽）时的最长退避时间 */
+    private static final int MAX_ERROR_DELAY = 1600;
+
     private final NioEndpoint endpoint;
+    private final ServerSocketChannel serverSocket;
+    private final int index;
+    private final Selector selector;
+
+    private final SocketChannel[] batch = new SocketChannel[MAX_ACCEPT_BATCH];
+    private int errorDelay = 0;
+    /** 是否持有一个还没有用掉的连接名额 */
+    private boolean holdingSlot = false;
 
-    public Acceptor(NioEndpoint endpoint) {
+    /**
+     * @param endpoint NioEndpoint
+     * @param serverSocket 监听通道，可能和其他 Acceptor 共享
+     * @param index 序号
+     */
+    public Acceptor(NioEndpoint endpoint, ServerSocketChannel serverSocket, int index) throws IOException {
         this.endpoint = endpoint;
+        this.serverSocket = serverSocket;
+        this.index = index;
+        selector = Selector.open();
+        serverSocket.register(selector, SelectionKey.OP_ACCEPT);
     }
 
     @Override
     public void run() {
-        /* 如果endpoint正在运行，就可以阻塞接受请求*/
-        log.info("在 -- [{}] -- 端口开启等待请求服务", endpoint.getPort());
-        while (endpoint.isRunning()) {
-            SocketChannel socket = null;
+        log.info("Acceptor-{} 在 -- [{}] -- 端口开启等待请求服务", index, endpoint.getPort());
+        while (endpoint.isAccepting()) {
             try {
-                // 获取一个连接
-                socket = endpoint.accept();
-                // 阻塞等待 socket 连接 ===> 前面把 ServerSocketChannel设置为阻塞的了
-                // 把这个套接字交由适当的处理器
-                if (endpoint.isRunning() && socket != null) processSocket(socket);
-            }
-            catch (IOException e) {
+                // 先占用一个连接名额，达到最大连接数时在这里等待
+                if (!holdingSlot) {
+                    endpoint.countUpOrAwaitConnection();
+                    holdingSlot = true;
+                }
+                if (!endpoint.isAccepting()) break;
+
+                // 等待新的连接，endpoint 关闭时会唤醒
+                if (selector.select() == 0) continue;
+                selector.selectedKeys().clear();
+                if (!endpoint.isAccepting()) break;
+
+                int n = acceptBatch();
+                if (n > 0) processBatch(n);
+                errorDelay = 0;
+            } catch (InterruptedException e) {
+                // 等待连接名额时被中断，检查是否还在运行
+            } catch (IOException e) {
+                if (!endpoint.isAccepting()) break;
                 log.info("endpoint.accept.fail", e);
-                try {
-                    // 发生异常，释放一个连接名称，断开连接
-                    // 这里的异常一般是由客户端连接后立刻又断开引起
-                    if (socket != null) {
-                        socket.socket().close();
-                        socket.close();
-                    }
-                } catch (IOException ignore) {
+                errorDelay = handleExceptionWithDelay(errorDelay);
+            }
+        }
+        if (holdingSlot) {
+            endpoint.countDownConnection();
+            holdingSlot = false;
+        }
+        try {
+            selector.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * 尽量多地接收已经完成握手的连接
+     *
+     * @return 接收到的连接数
+     */
+    private int acceptBatch() throws IOException {
+        int n = 0;
+        try {
+            while (n < MAX_ACCEPT_BATCH) {
+                // 第一个连接用的是 run 里等来的名额，后面的连接名额不够时留到下一轮
+                if (!holdingSlot) {
+                    if (!endpoint.tryCountUpConnection()) break;
+                    holdingSlot = true;
                 }
+                SocketChannel socket = serverSocket.accept();
+                // 没有新的连接了，或者被共享监听通道的其他 Acceptor 抢走了
+                if (socket == null) break;
+                batch[n++] = socket;
+                holdingSlot = false;
             }
+        } catch (IOException e) {
+            // 已经接收的连接照常处理
+            if (n == 0) throw e;
+            log.info("endpoint.accept.fail", e);
         }
+        return n;
+    }
 
+    /**
+     * 配置这一批连接，并交给 Poller
+     * 配置项只读取一次，整批共用
+     */
+    private void processBatch(int n) {
+        int soTimeout = endpoint.getSoTimeout();
+        for (int i = 0; i < n; i++) {
+            SocketChannel socket = batch[i];
+            batch[i] = null;
+            try {
+                if (endpoint.isAccepting()) {
+                    processSocket(socket, soTimeout);
+                    continue;
+                }
+            } catch (IOException e) {
+                // 这里的异常一般是由客户端连接后立刻又断开引起
+                log.info("endpoint.accept.fail", e);
+            }
+            closeSocket(socket);
+            // 没有交给 Poller 的连接，直接释放连接名额
+            endpoint.countDownConnection();
+        }
+        log.debug("Acceptor-{} 接收了一批 [{}] 个连接", index, n);
     }
 
-    private void processSocket(SocketChannel socket) throws IOException {
+    private void processSocket(SocketChannel socket, int soTimeout) throws IOException {
         // 设置成非阻塞模式
         socket.configureBlocking(false);
         // TCP连接会延迟
         socket.socket().setTcpNoDelay(true);
         // 此连接的超时时间
-        socket.socket().setSoTimeout(endpoint.getSoTimeout());
+        socket.socket().setSoTimeout(soTimeout);
 
-        // TODO NioChannel省去了 先从缓存区读取，  缓存区就是一个队列
-        // 封装成 NioChannel 对象
-        NioBufferHandler bufferHandler = new NioBufferHandler(12532305, writeBufSize);
+        // getPoller0()：选择负载最小的 poller
+        Poller poller = endpoint.getPoller0();
+        // 封装成 NioChannel 对象，读写 buffer 从 poller 对应的 buffer 池分区中借用，真正读写时才会分配
+        NioBufferHandler bufferHandler = new NioBufferHandler(poller.getBufferArena(), readBufSize, writeBufSize);
         NioChannel channel = new NioChannel(socket, bufferHandler);
-        // 将 NioChannel 对象插入 poller 的队列中，并指定关注的事件,getPoller0()：多个poller随机传来一个
-        endpoint.getPoller0().register(channel, SelectionKey.OP_READ);
+        // 将 NioChannel 对象插入 poller 的队列中，关注读事件
+        poller.add(channel);
         log.info("-----------接收通道 [{}] 连接-----------", channel);
     }
+
+    private void closeSocket(SocketChannel socket) {
+        try {
+            // 发生异常，释放一个连接名称，断开连接
+            socket.socket().close();
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * accept 出错时退避一段时间，避免在文件描述符耗尽等情况下空转
+     */
+    private int handleExceptionWithDelay(int currentErrorDelay) {
+        if (currentErrorDelay > 0) {
+            try {
+                Thread.sleep(currentErrorDelay);
+            } catch (InterruptedException ignore) {
+            }
+        }
+        if (currentErrorDelay == 0) {
+            return 50;
+        } else if (currentErrorDelay < MAX_ERROR_DELAY) {
+            return currentErrorDelay * 2;
+        } else {
+            return MAX_ERROR_DELAY;
+        }
+    }
+
+    /**
+     * 唤醒阻塞在 select 上的 Acceptor 线程，endpoint 关闭时调用
+     */
+    public void wakeup() {
+        selector.wakeup();
+    }
 }
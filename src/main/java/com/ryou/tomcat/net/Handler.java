@@ -1,7 +1,9 @@
 package com.ryou.tomcat.net;
 
 import ch.qos.logback.classic.Logger;
+import com.ryou.tomcat.net.util.ObjectPool;
 import com.ryou.tomcat.net.util.SocketState;
+import com.ryou.tomcat.net.util.TimeoutType;
 import org.slf4j.LoggerFactory;
 
 import java.nio.channels.SelectionKey;
@@ -23,6 +25,13 @@ public abstract class Handler {
     /** 连接和处理器的映射，主要是非阻塞读或写不完整时，再次处理时关联旧的处理器 */
     private final Map<NioChannel, Processor> connections = new ConcurrentHashMap<>();
 
+    /** 每个工作线程缓存的 Processor 个数 */
+    private static final int PROCESSOR_THREAD_CACHE = 4;
+    /** 所有线程共享的最多缓存的 Processor 个数 */
+    private static final int PROCESSOR_CACHE = 200;
+    /** 回收的 Processor，取出和归还都在工作线程里 */
+    private volatile ObjectPool<Processor> recycledProcessors = new ObjectPool<>(PROCESSOR_THREAD_CACHE, PROCESSOR_CACHE);
+
     /**
      * 对通道进行真正的处理
      * @param socket
@@ -37,10 +46,13 @@ public abstract class Handler {
         // 是否存在关联的 processor
         Processor processor = connections.get(socket);
         if (Objects.isNull(processor)) {
-            /** 创建一个处理类实例，并且放入connections连接管理器里面 */
-            processor = createProcessor();
+            /** 优先复用回收的处理器，没有再创建一个处理类实例，并且放入connections连接管理器里面 */
+            processor = recycledProcessors.poll();
+            if (processor == null) {
+                processor = createProcessor();
+                log.debug("为通道 [{}] 创建新的 Processor [{}]", socket, processor);
+            }
             connections.put(socket, processor);
-            log.debug("为通道 [{}] 创建新的 Processor [{}]", socket, processor);
         } else {
             log.debug("获取通道 [{}] 已创建关联的 Processor [{}]", socket, processor);
         }
@@ -52,31 +64,60 @@ public abstract class Handler {
         if (state == SocketState.LONG) {
             log.debug("[请求头数据不完整]，通道 [{}] 重新声明关注 [读取] 事件", socket);
             // 处理期间发现读取的数据不完整，要再次读取，此时通道要再次在 Poller 上声明关注读取事件
-            socket.getPoller().register(socket, SelectionKey.OP_READ);
+            // 通道一直注册在 Poller 上，这里只是恢复 key 关注的事件
+            socket.setTimeoutType(TimeoutType.READ);
+            socket.getPoller().updateInterest(socket, SelectionKey.OP_READ);
             // 不会移除通道和处理器的映射关系
         }
         else if (state == SocketState.OPEN) {
             log.debug("[保持连接]，通道 [{}] 重新声明关注 [读取] 事件", socket);
             // 长连接，要保持连接，因为不知道下次请求的时间，所以可以回收利用此通道关联的 Processor
-            // 这里主要是模拟实现，并没有真正实现 Processor 对象池
             connections.remove(socket);
+            recycle(processor);
+            // 等待下一个请求期间归还读写 buffer，必须在声明关注读取事件之前，之后通道可能已经交给其他工作线程
+            if (socket.getPoller().getEndpoint().getLendIdleBuffers()) {
+                socket.releaseIdleBuffers();
+            }
             // 再次声明关注读取事件
-            socket.getPoller().register(socket, SelectionKey.OP_READ);
+            socket.setTimeoutType(TimeoutType.KEEP_ALIVE);
+            socket.getPoller().updateInterest(socket, SelectionKey.OP_READ);
+        }
+        else if (state == SocketState.OFFLOAD) {
+            log.debug("[阻塞型 Servlet]，通道 [{}] 交给线程池继续处理", socket);
+            // 请求已经解析完了，保留映射关系，工作线程拿到同一个 Processor 后直接交给容器
+        }
+        else if (state == SocketState.SENDFILE) {
+            log.debug("[零拷贝发送文件]，通道 [{}] 声明关注 [写入] 事件", socket);
+            // 响应已经处理完了，剩下的文件由 Poller 发送，先回收 Processor 再注册，
+            // 否则 Poller 发送完接着处理管道化的请求时，可能拿到还没回收的 Processor
+            connections.remove(socket);
+            recycle(processor);
+            socket.setTimeoutType(TimeoutType.WRITE);
+            socket.getPoller().updateInterest(socket, SelectionKey.OP_WRITE);
         }
         else if (state == SocketState.WRITE) {
             log.debug("[写入响应数据]，通道 [{}] 声明关注 [写入] 事件", socket);
             // 简单起见，这个 Poller 也处理写入事件
-            socket.getPoller().register(socket, SelectionKey.OP_WRITE);
+            socket.setTimeoutType(TimeoutType.WRITE);
+            socket.getPoller().updateInterest(socket, SelectionKey.OP_WRITE);
         }
         else {  // 关闭连接
             connections.remove(socket);
+            recycle(processor);
         }
 
         return state;
     }
 
     /**
-     * 通道超时或关闭时移除对应的 Processor，防止内存泄露
+     * 通道是否关联着 Processor，也就是有请求正在处理，比如请求头还没读完整
+     */
+    public boolean isProcessing(NioChannel socket) {
+        return connections.containsKey(socket);
+    }
+
+    /**
+     * 通道超时或关闭时移除对应的 Processor，归还读写 buffer，防止内存泄露
      *
      * @param socket NioChannel
      */
@@ -84,10 +125,38 @@ public abstract class Handler {
         Processor p = connections.remove(socket);
         if (p != null) {
             log.debug("释放通道 [{}] 关联的 Processor [{}]", socket, p);
+            recycle(p);
         }
+        // 关闭还没有发送完的文件
+        SendfileData sd = socket.getSendfileData();
+        if (sd != null) {
+            socket.setSendfileData(null);
+            sd.close();
+        }
+        // 归还通道借用的读写 buffer
+        socket.releaseBuffers();
     }
 
 
+    /**
+     * 重置 Processor 并放回对象池
+     */
+    private void recycle(Processor processor) {
+        processor.recycle();
+        recycledProcessors.offer(processor);
+    }
+
+    /**
+     * 工作线程是虚拟线程时调用，每个任务都在新线程里运行，只使用共享栈
+     */
+    void disableThreadCache() {
+        recycledProcessors = new ObjectPool<>(0, PROCESSOR_CACHE);
+    }
+
+    public ObjectPool<Processor> getProcessorPool() {
+        return recycledProcessors;
+    }
+
     /**
      * 交由 真正的实现类 去创建一个合适的处理类
      * 如 创建一个HttpNioProcessor,来处理http请求和响应
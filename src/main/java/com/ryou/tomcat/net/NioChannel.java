@@ -2,13 +2,19 @@ package com.ryou.tomcat.net;
 
 import ch.qos.logback.classic.Logger;
 import com.ryou.tomcat.net.util.NioBufferHandler;
+import com.ryou.tomcat.net.util.NioSelectorPool;
+import com.ryou.tomcat.net.util.TimeoutType;
+import com.ryou.tomcat.net.util.TimingWheel;
 import org.slf4j.LoggerFactory;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @Author: 汉高鼠刘邦
@@ -18,7 +24,16 @@ public class NioChannel {
 
     private final static Logger log = (Logger) LoggerFactory.getLogger(Acceptor.class);
 
-    private Poller poller;
+    /** 发送错误响应之前最多丢掉的请求数据，客户端一直在发送时不会一直读下去 */
+    private static final int MAX_DISCARD = 64 * 1024;
+    /**
+     * 堆内存的写缓冲区每次最多写入的字节数，JDK 会先把要写的数据全部复制到临时的直接内存，
+     * 扩大过的写缓冲区可能很大，而发送缓冲区一次只能接收一小部分
+     */
+    private static final int MAX_HEAP_WRITE = 64 * 1024;
+
+    /** 负载均衡时会迁移到其他 poller，关闭通道的线程需要读到最新的值 */
+    private volatile Poller poller;
     // 接收连接之后的新 channel
     private final SocketChannel socket;
     /**
@@ -31,9 +46,45 @@ public class NioChannel {
 
     /**
      * NioChannel实例化的时间
-     * 最后操作的时间
+     * 最后操作的时间，由工作线程更新，Poller 线程读取
+     */
+    private volatile long lastAccess = -1;
+
+    /** 当前在 Poller 上等待的事件对应的超时类型 */
+    private volatile TimeoutType timeoutType = TimeoutType.READ;
+    /**
+     * 写缓冲区里还有没发送完的数据，此时 writeBuf 处于读模式（已经 flip 过）
+     * 等 Poller 通知通道可写时继续发送
+     */
+    private volatile boolean writePending = false;
+    /**
+     * 在 poller 线程里生成响应时发送缓冲区满了，响应剩下的数据都追加到写缓冲区，此时 writeBuf 处于写模式
+     * 响应结束时由 flush(false) 开始发送，见 {@link #park}
+     */
+    private boolean parked = false;
+
+    /** 正在零拷贝发送的文件，发送期间由 Poller 线程操作 */
+    private volatile SendfileData sendfileData;
+
+    /** 是否已经关闭，保证每个连接只释放一次连接数 */
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /** 聚集写使用的数组，同一时间只有一个线程在写这个通道 */
+    private ByteBuffer[] gather = new ByteBuffer[4];
+
+    /** 在 Poller 时间轮上的节点，只由 Poller 线程操作 */
+    private final TimingWheel.Node<NioChannel> timeoutNode = new TimingWheel.Node<>(this);
+
+    /** 在当前 poller 上注册得到的 key，整个连接期间复用，只有迁移到其他 poller 时才重新注册 */
+    private volatile SelectionKey selectionKey;
+    /**
+     * 希望 poller 关注的事件
+     * OP_READ 等待请求 -> 0 就绪后交给工作线程，poller 不再关注 -> 处理完后恢复成 OP_READ 或 OP_WRITE
+     * 由工作线程设置，poller 线程通过 {@link Poller#updateInterest} 设置到 key 上
      */
-    private long lastAccess = -1;
+    private volatile int interestOps = SelectionKey.OP_READ;
+    /** poller 更新队列里的下一个通道，通道本身就是队列节点，不需要为每个请求创建事件 */
+    NioChannel nextUpdate;
 
 
     // 里面包含读写的 缓冲buffer
@@ -71,6 +122,13 @@ public class NioChannel {
         return getIOChannel().isOpen();
     }
 
+    /**
+     * 标记通道已经关闭，只有第一次调用返回 true
+     */
+    boolean markClosed() {
+        return closed.compareAndSet(false, true);
+    }
+
     /**
      * 强制关闭
      * @param force boolean
@@ -87,22 +145,106 @@ public class NioChannel {
     public int write(ByteBuffer src) throws IOException {
         // src.remaining()： position和limit之间的间隔数，就是可以被get的数据还有多少
         while (src.hasRemaining()) {
-            getIOChannel().write(src);
+            int n = getIOChannel().write(src);
+            if (n == -1) throw new EOFException();
+            // 发送缓冲区满了，等待可写，而不是空转
+            if (n == 0) awaitWritable();
         }
 
         return src.remaining();
     }
 
     /**
-     * 在此通道进行读操作
+     * 聚集写：先发送写缓冲区里已有的数据（响应头、之前的响应体），再依次发送 srcs，
+     * 用一次 {@link java.nio.channels.GatheringByteChannel#write(ByteBuffer[], int, int)} 调用发送多段数据，
+     * srcs 不会复制到写缓冲区
+     * 阻塞直到全部发送完毕，返回后调用者可以复用 srcs
+     * 在 poller 线程里不等待，发送缓冲区满了就把剩下的数据留在写缓冲区，见 {@link #park}
+     *
+     * @param srcs 按顺序发送的数据
+     * @throws IOException
+     */
+    public void writeGathering(ByteBuffer... srcs) throws IOException {
+        if (parked) {
+            park(srcs, 0, srcs.length);
+            return;
+        }
+        ByteBuffer writeBuffer = bufferHandler.getWriteBuffer();
+        // 有未发送完的数据时，缓冲区已经是读模式了
+        if (!writePending) {
+            writeBuffer.flip();
+        }
+        int count = srcs.length + 1;
+        if (gather.length < count) {
+            gather = new ByteBuffer[count];
+        }
+        gather[0] = writeBuffer;
+        long remaining = writeBuffer.remaining();
+        for (int i = 0; i < srcs.length; i++) {
+            gather[i + 1] = srcs[i];
+            remaining += srcs[i].remaining();
+        }
+        log.info("聚集写入 - 将 [{}] 段共 [{}B] 数据写入通道 [{}]", count, remaining, this);
+        try {
+            int offset = 0;
+            while (remaining > 0) {
+                long n = socket.write(gather, offset, count - offset);
+                if (n == -1) throw new EOFException();
+                if (n > 0) {
+                    remaining -= n;
+                    access();
+                    // 跳过已经发送完的段
+                    while (offset < count && !gather[offset].hasRemaining()) offset++;
+                } else if (inEventLoop()) {
+                    // 第 0 段是写缓冲区本身
+                    park(gather, Math.max(offset, 1), count);
+                    return;
+                } else {
+                    // 发送缓冲区满了，等待可写，而不是空转
+                    awaitWritable();
+                }
+            }
+        } finally {
+            Arrays.fill(gather, 0, count, null);
+        }
+        writePending = false;
+        writeBuffer.clear();
+    }
+
+    /**
+     * 在此通道进行读操作，从 dst 的 position 处开始写入，不会清空 dst 里已有的数据
      * @param dst ByteBuffer 读到此缓冲区里面
      * @throws IOException
      */
     public int read(ByteBuffer dst) throws IOException {
-        dst.clear(); // 清理buffer
         return getIOChannel().read(dst);
     }
 
+    /**
+     * 发送错误响应并关闭连接之前，非阻塞地丢掉已经到达的请求数据，
+     * 否则关闭时接收缓冲区里还有数据，内核会发送 RST，客户端可能收不到响应
+     * 最多丢掉 MAX_DISCARD 字节，之后读缓冲区是空的
+     *
+     * @return 丢掉的字节数
+     * @throws IOException 客户端已经关闭了连接
+     */
+    public int discardInput() throws IOException {
+        ByteBuffer buf = readBuf();
+        int discarded = 0;
+        try {
+            while (discarded < MAX_DISCARD) {
+                buf.clear();
+                buf.limit(Math.min(buf.capacity(), MAX_DISCARD - discarded));
+                int n = read(buf);
+                if (n <= 0) break;
+                discarded += n;
+            }
+        } finally {
+            buf.limit(0);
+        }
+        return discarded;
+    }
+
     /**
      * 获取读操作的缓冲区
      * @return ByteBuffer
@@ -111,6 +253,15 @@ public class NioChannel {
         return bufferHandler.getReadBuffer();
     }
 
+    /**
+     * 请求头放不下时扩大读缓冲区，没有处理的数据会保留
+     * @param capacity 新的最小容量
+     * @return 新的读缓冲区
+     */
+    public ByteBuffer expandReadBuf(int capacity) {
+        return bufferHandler.expandReadBuffer(capacity);
+    }
+
     /**
      * 获取写缓冲区
      * @return ByteBuffer
@@ -120,7 +271,33 @@ public class NioChannel {
     }
 
     /**
-     * 更新lastAccess
+     * 通道关闭时，将读写 buffer 归还到 buffer 池
+     */
+    public void releaseBuffers() {
+        bufferHandler.release();
+    }
+
+    /**
+     * 长连接等待下一个请求时，将读写 buffer 归还到 buffer 池，Poller 通知可读后读取时再借用
+     * 还有数据没处理完、没发送完时不归还
+     *
+     * @return 是否归还了
+     */
+    public boolean releaseIdleBuffers() {
+        if (writePending) return false;
+        return bufferHandler.releaseIdle();
+    }
+
+    /**
+     * 读写 buffer 里还有没处理、没发送的数据
+     */
+    public boolean hasBufferedData() {
+        return writePending || bufferHandler.hasBufferedData();
+    }
+
+    /**
+     * 更新lastAccess，超时的截止时间随之推迟
+     * 时间轮上的节点不会在这里移动，Poller 检查到期时发现截止时间被推迟了，会重新调度
      */
     public void access() {
         lastAccess = System.currentTimeMillis();
@@ -130,14 +307,42 @@ public class NioChannel {
         return lastAccess;
     }
 
+    public TimeoutType getTimeoutType() {
+        return timeoutType;
+    }
+
+    public void setTimeoutType(TimeoutType timeoutType) {
+        this.timeoutType = timeoutType;
+    }
+
+    TimingWheel.Node<NioChannel> getTimeoutNode() {
+        return timeoutNode;
+    }
+
     public Poller getPoller() {
         return poller;
     }
 
+    SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    public int getInterestOps() {
+        return interestOps;
+    }
+
+    void setInterestOps(int interestOps) {
+        this.interestOps = interestOps;
+    }
+
 
     @Override
     public String toString() {
-        return getIOChannel().socket().getRemoteSocketAddress().toString();
+        return String.valueOf(getIOChannel().socket().getRemoteSocketAddress());
     }
 
     /**
@@ -146,19 +351,153 @@ public class NioChannel {
      * @throws IOException
      */
     public void flush() throws IOException {
+        flush(true);
+    }
+
+    /**
+     * 把写缓冲区的数据发送到客户端
+     *
+     * @param block true - 阻塞直到发送完毕，发送缓冲区满时借临时 Selector 等待可写，超时抛异常，
+     *              在 poller 线程里不等待，剩下的数据留在写缓冲区，见 {@link #park}；
+     *              false - 只发送通道当前能接收的数据，剩下的留在写缓冲区，等 Poller 通知可写后继续发送
+     * @return 是否发送完毕，发送完毕时缓冲区被重置以供写入
+     * @throws IOException
+     */
+    public boolean flush(boolean block) throws IOException {
+        if (parked) {
+            // 响应还没结束，继续追加
+            if (block) return false;
+            parked = false;
+        }
         ByteBuffer writeBuffer = bufferHandler.getWriteBuffer();
-        writeBuffer.flip();
+        // 有未发送完的数据时，缓冲区已经是读模式了
+        if (!writePending) {
+            writeBuffer.flip();
+        }
         if (writeBuffer.remaining() > 0) {
-            log.info("模拟阻塞写入 - 将响应体 [{}B] 数据写入通道 [{}]", writeBuffer.remaining(), this);
+            log.info("{}写入 - 将响应体 [{}B] 数据写入通道 [{}]", block ? "阻塞" : "非阻塞", writeBuffer.remaining(), this);
         }
-        while (writeBuffer.hasRemaining()) { // TODO 超时处理
-            int n = socket.write(writeBuffer);
+        while (writeBuffer.hasRemaining()) {
+            int n = write0(writeBuffer);
             if (n == -1) throw new EOFException();
             if (n > 0) { // write success
-                log.debug("  阻塞写入 [{}B] 字节", n);
+                log.debug("  写入 [{}B] 字节", n);
+                access();
+            } else if (block && inEventLoop()) {
+                park(null, 0, 0);
+                return false;
+            } else if (block) {
+                awaitWritable();
+            } else {
+                // 发送缓冲区满了，剩下的数据等待 OP_WRITE
+                writePending = true;
+                log.debug("  通道 [{}] 暂时不可写，还有 [{}B] 等待发送", this, writeBuffer.remaining());
+                return false;
             }
-//            log.info("  写入 [{}B] 字节，完成响应任务", n);
         }
+        writePending = false;
         writeBuffer.clear();
+        return true;
+    }
+
+    private int write0(ByteBuffer writeBuffer) throws IOException {
+        if (writeBuffer.isDirect() || writeBuffer.remaining() <= MAX_HEAP_WRITE) {
+            return socket.write(writeBuffer);
+        }
+        int limit = writeBuffer.limit();
+        writeBuffer.limit(writeBuffer.position() + MAX_HEAP_WRITE);
+        try {
+            return socket.write(writeBuffer);
+        } finally {
+            writeBuffer.limit(limit);
+        }
+    }
+
+    /**
+     * 写缓冲区里是否还有没发送完的数据
+     */
+    public boolean hasPendingWrite() {
+        return writePending;
+    }
+
+    public SendfileData getSendfileData() {
+        return sendfileData;
+    }
+
+    public void setSendfileData(SendfileData sendfileData) {
+        this.sendfileData = sendfileData;
+    }
+
+    /**
+     * 事件循环模式下 poller 线程不能等待通道可写，否则这个 poller 上所有的连接都会停下来
+     * 没发送完的数据移到写缓冲区的开头，srcs 剩下的数据接在后面，写缓冲区放不下时换一个更大的，
+     * 之后 Servlet 写的数据都直接追加，不再尝试发送，
+     * 响应结束时 {@link #flush(boolean) flush(false)} 发送不完的部分等待 OP_WRITE，
+     * 和工作线程里的非阻塞发送一样，见 {@link com.ryou.tomcat.net.util.SocketState#WRITE}
+     *
+     * @param srcs 还没发送完的数据，为 null 时只处理写缓冲区
+     * @param from srcs 里第一段的下标
+     * @param to srcs 里最后一段的下一个下标
+     */
+    private void park(ByteBuffer[] srcs, int from, int to) throws IOException {
+        ByteBuffer writeBuffer = bufferHandler.getWriteBuffer();
+        if (!parked) {
+            // 写缓冲区切换回写模式，继续接收数据
+            writeBuffer.compact();
+            writePending = false;
+            parked = true;
+            log.debug("  通道 [{}] 暂时不可写，响应剩下的数据留在写缓冲区，响应结束后等待 OP_WRITE 发送", this);
+        }
+        long size = writeBuffer.position();
+        for (int i = from; i < to; i++) {
+            size += srcs[i].remaining();
+        }
+        if (size > writeBuffer.capacity()) {
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IOException("通道 [" + this + "] 等待发送的响应数据太多 [" + size + "B]");
+            }
+            // 至少扩大一倍，Servlet 一段一段写的时候不用每次都复制
+            int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(size, writeBuffer.capacity() * 2L));
+            writeBuffer = bufferHandler.expandWriteBuffer(capacity);
+        }
+        for (int i = from; i < to; i++) {
+            writeBuffer.put(srcs[i]);
+        }
+    }
+
+    /**
+     * 阻塞等待通道可读，超时时间是 endpoint 的 soTimeout，读取请求体时使用
+     */
+    public void awaitReadable() throws IOException {
+        checkNotInEventLoop();
+        long timeout = poller != null ? poller.getEndpoint().getTimeout(TimeoutType.READ) : 20000;
+        NioSelectorPool.awaitReadable(socket, timeout);
+    }
+
+    /**
+     * 阻塞等待通道可写，超时时间是 endpoint 的 writeTimeout
+     */
+    private void awaitWritable() throws IOException {
+        checkNotInEventLoop();
+        long timeout = poller != null ? poller.getEndpoint().getTimeout(TimeoutType.WRITE) : 20000;
+        NioSelectorPool.awaitWritable(socket, timeout);
+    }
+
+    /**
+     * 事件循环模式下 poller 线程不能阻塞等待，否则这个 poller 上所有的连接都会停下来
+     * 有请求体的请求在读取请求体之前已经交给了线程池，写响应不会走到这里，见 {@link #park}
+     */
+    private void checkNotInEventLoop() throws IOException {
+        if (inEventLoop()) {
+            throw new IOException("事件循环模式下不能在 poller 线程里等待通道 [" + this + "]");
+        }
+    }
+
+    /**
+     * 当前线程是不是这个通道所在 poller 的线程，并且在事件循环模式下处理请求
+     */
+    private boolean inEventLoop() {
+        Poller poller = this.poller;
+        return poller != null && poller.inEventLoop();
     }
 }
@@ -3,17 +3,30 @@ package com.ryou.tomcat.net;
 import ch.qos.logback.classic.Logger;
 import com.ryou.tomcat.http.HttpNioProcessor;
 import com.ryou.tomcat.http.HttpNioProcessorTemporary;
+import com.ryou.tomcat.net.util.LimitLatch;
+import com.ryou.tomcat.net.util.NioBufferPool;
+import com.ryou.tomcat.net.util.ObjectPool;
 import com.ryou.tomcat.net.util.SocketState;
+import com.ryou.tomcat.net.util.TaskQueue;
+import com.ryou.tomcat.net.util.TaskThreadPool;
+import com.ryou.tomcat.net.util.TimeoutType;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @Author: 汉高鼠刘邦
@@ -26,6 +39,24 @@ public class NioEndpoint {
      * endPoint的运行状态、
      */
     private volatile boolean running = false;
+    /**
+     * 正在优雅关闭：不再接收新连接，空闲的长连接直接关闭，正在处理的请求响应 Connection: close，
+     * 等它们处理完或者等待超时之后才真正关闭
+     */
+    private volatile boolean draining = false;
+    /** 优雅关闭最多等待的时间，毫秒，0 表示立即关闭 */
+    private long drainTimeout = 10000;
+    /** 已经派发、还没有运行完的 SocketProcessor 个数 */
+    private final AtomicInteger inflightCount = new AtomicInteger();
+    public void setDrainTimeout(long drainTimeout) {
+        this.drainTimeout = drainTimeout;
+    }
+    public boolean isDraining() {
+        return draining;
+    }
+    public int getInflightCount() {
+        return inflightCount.get();
+    }
     /**
      * endPoint是否初始化
      */
@@ -33,22 +64,121 @@ public class NioEndpoint {
     /**
      * 管理SocketChannel的连接
      */
-    private Acceptor acceptor;
+    private Acceptor[] acceptors;
+    /** Acceptor 线程数，连接风暴时单个 Acceptor 会成为瓶颈 */
+    private int acceptorThreadCount = 1;
+    public void setAcceptorThreadCount(int acceptorThreadCount) {
+        this.acceptorThreadCount = acceptorThreadCount;
+    }
     /**
      * 轮询
      */
     protected Poller[] pollers = null;
-    protected int pollerRoundRobin = 0;
+    protected final AtomicInteger pollerRoundRobin = new AtomicInteger();
+    /**
+     * 选择负载最小的 poller，负载见 {@link Poller#getLoad()}
+     * 从轮转的位置开始比较，负载相同时依次分配；多个 Acceptor 同时调用时可能选中同一个，不影响正确性
+     */
     public Poller getPoller0() {
-        pollerRoundRobin = (pollerRoundRobin + 1) % pollers.length;
-        return pollers[pollerRoundRobin];
+        Poller[] pollers = this.pollers;
+        int start = (pollerRoundRobin.getAndIncrement() & Integer.MAX_VALUE) % pollers.length;
+        Poller best = pollers[start];
+        double min = best.getLoad();
+        for (int i = 1; i < pollers.length; i++) {
+            Poller poller = pollers[(start + i) % pollers.length];
+            double load = poller.getLoad();
+            if (load < min) {
+                best = poller;
+                min = load;
+            }
+        }
+        return best;
+    }
+    /**
+     * 负载不均衡的阈值，某个 poller 的负载超过最小负载的 (1 + threshold) 倍时，
+     * 把它上面空闲的长连接迁移到负载最小的 poller，0 表示不迁移
+     */
+    private double pollerRebalanceThreshold = 0.5;
+    public void setPollerRebalanceThreshold(double pollerRebalanceThreshold) {
+        this.pollerRebalanceThreshold = pollerRebalanceThreshold;
+    }
+    public double getPollerRebalanceThreshold() {
+        return pollerRebalanceThreshold;
     }
-    // TODO 可以修改
+    /** Poller 线程数，事件循环模式下一般和 CPU 核数相同 */
     int pollerThreadCount = 3;
+    public void setPollerThreadCount(int pollerThreadCount) {
+        this.pollerThreadCount = Math.max(1, pollerThreadCount);
+    }
+    /**
+     * 事件循环模式：Poller 线程自己解析请求、调用容器生成响应，不再交给线程池
+     * 省掉了线程间的交接和上下文切换，适合静态资源、健康检查这类很快、不阻塞的请求
+     * 有请求体的请求、映射到阻塞型 Servlet 的请求，解析完请求头之后仍然交给线程池，见 {@link SocketState#OFFLOAD}
+     * 在 poller 线程里生成的响应，发送缓冲区满了不会等待，剩下的数据留在写缓冲区，响应结束后等待 OP_WRITE 发送
+     */
+    private boolean useEventLoop = false;
+    public void setUseEventLoop(boolean useEventLoop) {
+        this.useEventLoop = useEventLoop;
+    }
+    public boolean isEventLoop() {
+        return useEventLoop;
+    }
     /**
-     * 服务器的连接
+     * 请求行和请求头的最大字节数，超过时返回 431
      */
-    private ServerSocketChannel serverSocket;
+    private int maxHttpHeaderSize = 8192;
+    public void setMaxHttpHeaderSize(int maxHttpHeaderSize) {
+        this.maxHttpHeaderSize = maxHttpHeaderSize;
+    }
+    public int getMaxHttpHeaderSize() {
+        return maxHttpHeaderSize;
+    }
+    /**
+     * 请求体的最大字节数，Content-Length 超过时返回 413，chunked 请求体解码时超过就中断读取，-1 表示不限制
+     */
+    private long maxBodySize = 10 * 1024 * 1024;
+    public void setMaxBodySize(long maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+    /**
+     * chunked 响应中小块数据合并后一块的最大字节数，不大于 0 时每次写入单独成块
+     */
+    private int maxChunkSize = 8192;
+    public void setMaxChunkSize(int maxChunkSize) {
+        this.maxChunkSize = maxChunkSize;
+    }
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+    /**
+     * 是否支持零拷贝发送文件，开启时 Servlet 可以通过请求属性把大文件交给 Poller 用 transferTo 发送，
+     * 见 {@link SendfileData}
+     */
+    private boolean useSendfile = true;
+    public void setUseSendfile(boolean useSendfile) {
+        this.useSendfile = useSendfile;
+    }
+    public boolean getUseSendfile() {
+        return useSendfile;
+    }
+    /**
+     * 长连接等待下一个请求时是否归还读写 buffer，开启时 buffer 占用的内存只和正在处理的请求数有关，
+     * 和打开的连接数无关，代价是每个请求都要从 buffer 池借用一次
+     */
+    private boolean lendIdleBuffers = true;
+    public void setLendIdleBuffers(boolean lendIdleBuffers) {
+        this.lendIdleBuffers = lendIdleBuffers;
+    }
+    public boolean getLendIdleBuffers() {
+        return lendIdleBuffers;
+    }
+    /**
+     * 服务器的连接，支持 SO_REUSEPORT 时每个 Acceptor 一个，否则所有 Acceptor 共享一个
+     */
+    private ServerSocketChannel[] serverSockets;
     /**
      * 端口，可以通过配置修改
      */
@@ -69,36 +199,200 @@ public class NioEndpoint {
      * socket的读取read方法阻塞的超时时间，TODO 也可以通过配置修改
      */
     private final int soTimeout = 20000; // 20s
+    /** 长连接等待下一个请求的超时时间 */
+    private int keepAliveTimeout = soTimeout;
+    /** 等待发送缓冲区可写的超时时间 */
+    private int writeTimeout = soTimeout;
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+    public void setWriteTimeout(int writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
     /**
      * threadPriority: 线程的优先级别，TODO
      */
     private final int threadPriority = Thread.NORM_PRIORITY; // 5
 
     /** 已完成 3 次握手，还没有被应用层接收的连接队列大小 */
-    private final int acceptCount = 100;// backlog
+    private int acceptCount = 100;// backlog
+    public void setAcceptCount(int acceptCount) {
+        this.acceptCount = acceptCount;
+    }
+
+    /**
+     * 最大连接数，-1 表示不限制
+     * 达到上限时 Acceptor 暂停接收连接，新的连接留在 backlog 里，backlog 满了由内核拒绝
+     */
+    private int maxConnections = 10000;
+    private LimitLatch connectionLimitLatch;
+    /** Acceptor 因为达到最大连接数而暂停的次数、总时长 */
+    private final AtomicLong acceptThrottleCount = new AtomicLong();
+    private final AtomicLong acceptThrottleNanos = new AtomicLong();
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        LimitLatch latch = connectionLimitLatch;
+        if (latch != null && maxConnections > 0) {
+            latch.setLimit(maxConnections);
+        }
+    }
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+    public long getConnectionCount() {
+        LimitLatch latch = connectionLimitLatch;
+        return latch == null ? 0 : latch.getCount();
+    }
+    public long getAcceptThrottleCount() {
+        return acceptThrottleCount.get();
+    }
+    public long getAcceptThrottleMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(acceptThrottleNanos.get());
+    }
 
     private Handler handler;
 
     /* 线程池 */
     private ExecutorService executor;
-    // TODO 配置
-    private final int maxThreads = 25;
-    private final int corePoolSize = 10;
+    /** 最大线程数，没有空闲线程时先把线程数加到这里再排队 */
+    private int maxThreads = 25;
+    /** 常驻的线程数 */
+    private int minSpareThreads = 10;
+    /** 超过 minSpareThreads 的线程最长空闲时间，毫秒 */
+    private long maxIdleTime = 60000;
+    /**
+     * 是否使用虚拟线程运行 SocketProcessor，需要 Java 21 及以上，否则退回到线程池
+     * 适合 Servlet 里有大量阻塞操作（JDBC、下游 HTTP 调用）的场景，不再受 maxThreads 的限制
+     */
+    private boolean useVirtualThreads = false;
+    /**
+     * 等待线程池处理的最大请求数，队列满了直接返回 503
+     * 无界队列在突发流量下会一直堆积，等轮到处理时客户端早就放弃了
+     */
+    private int maxQueueSize = 1000;
+    /** 请求在队列里等待的最长时间，毫秒，超过的直接返回 503，-1 表示不限制 */
+    private long maxQueueTime = 10000;
+    /** 503 响应里 Retry-After 的秒数 */
+    private int retryAfter = 1;
+    /** 预先编码好的 503 响应 */
+    private byte[] serviceUnavailable;
+    /** 因为队列满了、等待超时而拒绝的请求数 */
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+    public void setMinSpareThreads(int minSpareThreads) {
+        this.minSpareThreads = minSpareThreads;
+    }
+    public void setMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+    public void setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+    }
+    public void setMaxQueueTime(long maxQueueTime) {
+        this.maxQueueTime = maxQueueTime;
+    }
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+    /** 线程池当前的线程数、忙碌的线程数、排队的任务数和峰值，虚拟线程模式下都是 -1 */
+    public int getPoolSize() {
+        return executor instanceof TaskThreadPool ? ((TaskThreadPool) executor).getPoolSize() : -1;
+    }
+    public int getActiveCount() {
+        return executor instanceof TaskThreadPool ? ((TaskThreadPool) executor).getActiveCount() : -1;
+    }
+    public int getQueueSize() {
+        return executor instanceof TaskThreadPool ? ((TaskThreadPool) executor).getQueueSize() : -1;
+    }
+    public int getLargestPoolSize() {
+        return executor instanceof TaskThreadPool ? ((TaskThreadPool) executor).getLargestPoolSize() : -1;
+    }
+    public int getPeakQueueSize() {
+        return executor instanceof TaskThreadPool ? ((TaskThreadPool) executor).getPeakQueueSize() : -1;
+    }
+    /** 是否真正使用了虚拟线程 */
+    private boolean virtualThreads = false;
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /* 读写 buffer 池，每个 Poller 一个分区 */
+    private NioBufferPool bufferPool;
+    /** 每个分区最多缓存的空闲 buffer 内存 */
+    private long bufferPoolMaxPooledBytes = 8 * 1024 * 1024;
+    /** buffer 池最多分配的直接内存，超过后使用堆内存 */
+    private long bufferPoolMaxDirectBytes = 128 * 1024 * 1024;
+    /** 是否开启 buffer 泄露检测 */
+    private boolean bufferPoolLeakDetection = true;
+    public void setBufferPoolMaxPooledBytes(long bufferPoolMaxPooledBytes) {
+        this.bufferPoolMaxPooledBytes = bufferPoolMaxPooledBytes;
+    }
+    public void setBufferPoolMaxDirectBytes(long bufferPoolMaxDirectBytes) {
+        this.bufferPoolMaxDirectBytes = bufferPoolMaxDirectBytes;
+    }
+    public void setBufferPoolLeakDetection(boolean bufferPoolLeakDetection) {
+        this.bufferPoolLeakDetection = bufferPoolLeakDetection;
+    }
+    public NioBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * 回收的 SocketProcessor，在 Poller 线程取出，在工作线程归还，所以不使用线程缓存
+     */
+    private ObjectPool<SocketProcessor> socketProcessorPool;
+    /** 最多缓存的 SocketProcessor 个数 */
+    private int socketProcessorCache = 500;
+    public void setSocketProcessorCache(int socketProcessorCache) {
+        this.socketProcessorCache = socketProcessorCache;
+    }
+    public ObjectPool<SocketProcessor> getSocketProcessorPool() {
+        return socketProcessorPool;
+    }
 
     /**
      * 初始化NioEndPoint，被connector调用
      */
     public void init() throws IOException {
+        int count = Math.max(1, acceptorThreadCount);
+        // 多个 Acceptor 时优先使用 SO_REUSEPORT，每个 Acceptor 绑定自己的监听通道
+        SocketOption<Boolean> reusePort = count > 1 ? reusePortOption() : null;
+
         // 开启服务线程
-        serverSocket = ServerSocketChannel.open();
-        // 绑定端口号
-        serverSocket.bind(new InetSocketAddress(port), acceptCount);
-        // 此处设置为阻塞的，这样接下来的serverSocket.accept方法就是阻塞的，没有请求会在此方法阻塞住
-        serverSocket.configureBlocking(true);
-        // 设置超时时间。。。TODO
-        //  当调用socket.getInputStream().read()方法时,由于这个read()方法是阻塞的,read()方法会一直处于阻塞状态等待接受数据而导致不能往下执行代码;而setSoTimeout()方法就是设置阻塞的超时时间.
-        //当设置了超时时间后,如果read()方法读不到数据,处于等待读取数据的状态时,就会开始计算超时时间;当到达超时时间还没有新的数据可以读取的时候,read()方法就会抛出io异常,结束read()方法的阻塞状态;如果到达超时时间前,从缓冲区读取到了数据,那么就重新计算超时时间.
-        serverSocket.socket().setSoTimeout(soTimeout);
+        ServerSocketChannel first = ServerSocketChannel.open();
+        if (reusePort != null && !first.supportedOptions().contains(reusePort)) {
+            reusePort = null;
+        }
+        serverSockets = new ServerSocketChannel[reusePort != null ? count : 1];
+        serverSockets[0] = first;
+        for (int i = 1; i < serverSockets.length; i++) {
+            serverSockets[i] = ServerSocketChannel.open();
+        }
+        for (ServerSocketChannel serverSocket : serverSockets) {
+            if (reusePort != null) {
+                serverSocket.setOption(reusePort, true);
+            }
+            // 绑定端口号
+            serverSocket.bind(new InetSocketAddress(port), acceptCount);
+            // 设置为非阻塞的，由 Acceptor 在自己的 Selector 上等待 OP_ACCEPT
+            serverSocket.configureBlocking(false);
+        }
+        if (count > 1) {
+            log.info("[{}] 个 Acceptor，{}", count, reusePort != null
+                    ? "使用 SO_REUSEPORT，每个 Acceptor 一个监听通道" : "不支持 SO_REUSEPORT，共享一个监听通道");
+        }
 
         // 已经初始化完成
         initialized = true;
@@ -125,11 +419,24 @@ public class NioEndpoint {
             // 设置状态是在运行
             running = true;
 
+            serviceUnavailable = ("HTTP/1.1 503 Service Unavailable\r\n"
+                    + "Retry-After: " + retryAfter + "\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
             // 创建线程池
             if ( getExecutor() == null ) {
                 createExecutor();
             }
 
+            // 创建读写 buffer 池
+            bufferPool = new NioBufferPool(pollerThreadCount, bufferPoolMaxPooledBytes,
+                    bufferPoolMaxDirectBytes, bufferPoolLeakDetection);
+            // 创建最大连接数的计数器
+            connectionLimitLatch = maxConnections > 0 ? new LimitLatch(maxConnections) : null;
+            // 创建 SocketProcessor 对象池
+            socketProcessorPool = new ObjectPool<>(0, socketProcessorCache);
+
             // 初始化并启动 Poller 和 Acceptor 线程
             // 开启轮训者线程
             pollers = new Poller[pollerThreadCount];// pollerThreadCount:2
@@ -147,7 +454,7 @@ public class NioEndpoint {
     private void startPollerThread() {
         for (int i = 0; i < pollers.length; i++) {
             try {
-                pollers[i] = new Poller(this);
+                pollers[i] = new Poller(this, bufferPool.arena(i));
             } catch (IOException e) {
                 e.printStackTrace();
                 log.info("Poller开启失败--" + i);
@@ -165,14 +472,22 @@ public class NioEndpoint {
      * 开启接收者线程 管理socketChannel.accept
      */
     private void startAcceptorThread() {
-        // 实例化Acceptor
-        acceptor = new Acceptor(this);
-        // 启动线程
-        Thread acceptorThread = new Thread(acceptor, getPort() + "-Acceptor-0");
-        // 设置优先级
-        acceptorThread.setPriority(threadPriority);
-        // 启动
-        acceptorThread.start();
+        acceptors = new Acceptor[Math.max(1, acceptorThreadCount)];
+        for (int i = 0; i < acceptors.length; i++) {
+            try {
+                // 实例化Acceptor
+                acceptors[i] = new Acceptor(this, serverSockets[i % serverSockets.length], i);
+            } catch (IOException e) {
+                log.error("", e);
+                continue;
+            }
+            // 启动线程
+            Thread acceptorThread = new Thread(acceptors[i], getPort() + "-Acceptor-" + i);
+            // 设置优先级
+            acceptorThread.setPriority(threadPriority);
+            // 启动
+            acceptorThread.start();
+        }
 
     }
 
@@ -190,15 +505,98 @@ public class NioEndpoint {
      * 线程池的创建，初始化
      */
     private void createExecutor() {
-        executor = new ThreadPoolExecutor(
-                corePoolSize,maxThreads,
-                500,
-                TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<>());
+        if (useVirtualThreads) {
+            executor = newVirtualThreadPerTaskExecutor();
+            if (executor != null) {
+                virtualThreads = true;
+                // 每个任务都在新的虚拟线程里运行，Processor 的线程缓存没有意义
+                handler.disableThreadCache();
+                log.info("使用虚拟线程运行 SocketProcessor");
+                return;
+            }
+            log.warn("当前 Java 版本 [{}] 不支持虚拟线程，使用线程池", System.getProperty("java.version"));
+        }
+        int max = Math.max(1, maxThreads);
+        TaskQueue taskQueue = new TaskQueue(maxQueueSize > 0 ? maxQueueSize : Integer.MAX_VALUE);
+        executor = new TaskThreadPool(Math.min(Math.max(0, minSpareThreads), max), max,
+                maxIdleTime, taskQueue, getPort() + "-exec-");
+    }
+
+
+    /**
+     * 通过反射获取 Java 9 的 StandardSocketOptions.SO_REUSEPORT
+     *
+     * @return 不支持时返回 null
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 通过反射调用 Java 21 的 Executors.newVirtualThreadPerTaskExecutor()，项目本身仍然按 Java 8 编译
+     *
+     * @return 不支持虚拟线程时返回 null
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
     }
 
 
     /*-----------------------------------------给Acceptor和Poller调用的方法*/
+
+    /**
+     * 占用一个连接名额，达到最大连接数时阻塞，直到有连接关闭
+     */
+    void countUpOrAwaitConnection() throws InterruptedException {
+        LimitLatch latch = connectionLimitLatch;
+        if (latch == null || latch.tryCountUp()) return;
+
+        log.warn("连接数达到上限 [{}]，暂停接收连接", maxConnections);
+        long start = System.nanoTime();
+        latch.countUpOrAwait();
+        long waited = System.nanoTime() - start;
+        acceptThrottleCount.incrementAndGet();
+        acceptThrottleNanos.addAndGet(waited);
+        log.info("恢复接收连接，暂停了 [{}ms]", TimeUnit.NANOSECONDS.toMillis(waited));
+    }
+
+    /**
+     * 尝试占用一个连接名额，不阻塞
+     */
+    boolean tryCountUpConnection() {
+        LimitLatch latch = connectionLimitLatch;
+        return latch == null || latch.tryCountUp();
+    }
+
+    /**
+     * 释放一个连接名额，用于还没有封装成 NioChannel 的连接
+     */
+    void countDownConnection() {
+        LimitLatch latch = connectionLimitLatch;
+        if (latch != null) latch.countDown();
+    }
+
+    /**
+     * 通道关闭时释放它占用的连接名额和在 poller 上的计数，每个通道只会释放一次
+     */
+    void countDownConnection(NioChannel socket) {
+        if (socket.markClosed()) {
+            countDownConnection();
+            Poller poller = socket.getPoller();
+            if (poller != null) poller.channelRemoved();
+        }
+    }
+
     /**
      * 返回运行状态
      * @return boolean
@@ -207,15 +605,27 @@ public class NioEndpoint {
         return running;
     }
 
+    /**
+     * 是否还在接收新连接，开始优雅关闭之后就不再接收
+     */
+    public boolean isAccepting() {
+        return running && !draining;
+    }
+
 
     /**
      * endpoint关闭,
      * 是上面的servlet调用其生命周期的destroy方法的的时候才会调用到此方法
      */
     public void stop()  {
+        if (running && drainTimeout > 0) {
+            drain();
+        }
         running = false;
+        stopAcceptors();
         try {
             for (Poller poller : pollers) {
+                log.debug("{}", poller);
                 poller.destroy();
             }
         } catch (IOException e) {
@@ -224,15 +634,67 @@ public class NioEndpoint {
         pollers = null;
         // 关闭线程池
         executor.shutdownNow();
+        socketProcessorPool.clear();
     }
 
     /**
-     * 进行获取 客户端的请求连接
-     * @return
-     * @throws IOException
+     * 不再接收新连接：唤醒 Acceptor 让它退出，并关闭监听通道，新的连接会被内核直接拒绝
      */
-    public SocketChannel accept() throws IOException {
-        return serverSocket.accept();
+    private void stopAcceptors() {
+        // 唤醒等待连接名额的 Acceptor
+        if (connectionLimitLatch != null) {
+            connectionLimitLatch.releaseAll();
+        }
+        // 唤醒 Acceptor 并关闭监听通道
+        for (Acceptor acceptor : acceptors) {
+            if (acceptor != null) acceptor.wakeup();
+        }
+        for (ServerSocketChannel serverSocket : serverSockets) {
+            try {
+                serverSocket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * 优雅关闭：停止接收连接，让 Poller 关闭空闲的长连接，
+     * 等正在处理的请求和还没关闭的连接处理完，最多等待 drainTimeout
+     */
+    private void drain() {
+        draining = true;
+        log.info("开始优雅关闭，最多等待 [{}ms]，还有 [{}] 个请求正在处理，[{}] 个连接",
+                drainTimeout, inflightCount.get(), getConnectionCount());
+        stopAcceptors();
+        for (Poller poller : pollers) {
+            poller.wakeup();
+        }
+        long start = System.currentTimeMillis();
+        long deadline = start + drainTimeout;
+        long nextLog = start + 1000;
+        while (true) {
+            int inflight = inflightCount.get();
+            long connections = getConnectionCount();
+            long now = System.currentTimeMillis();
+            if (inflight == 0 && connections == 0) {
+                log.info("所有连接已处理完毕，用时 [{}ms]", now - start);
+                return;
+            }
+            if (now >= deadline) {
+                log.warn("优雅关闭超时，还有 [{}] 个请求正在处理，[{}] 个连接，强制关闭", inflight, connections);
+                return;
+            }
+            if (now >= nextLog) {
+                log.info("等待连接处理完毕：还有 [{}] 个请求正在处理，[{}] 个连接", inflight, connections);
+                nextLog = now + 1000;
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
     }
 
     /**
@@ -255,22 +717,67 @@ public class NioEndpoint {
         return soTimeout;
     }
 
+    /**
+     * 获取通道等待某种事件的超时时间
+     * @param type 超时类型
+     * @return 毫秒
+     */
+    public int getTimeout(TimeoutType type) {
+        switch (type) {
+            case WRITE: return writeTimeout;
+            case KEEP_ALIVE: return keepAliveTimeout;
+            default: return soTimeout;
+        }
+    }
+
 
     /**
      * 此方法被 poller的run方法所调用
-     * 将事件交由线程池处理
+     * 将事件交由线程池处理，事件循环模式下直接在 poller 线程里处理
      * @param socket NioChannel
      * @return boolean,操作是否成功
      */
     protected boolean processSocket(NioChannel socket) {
+        return processSocket(socket, !useEventLoop);
+    }
+
+    /**
+     * @param socket NioChannel
+     * @param dispatch true 交给线程池处理，false 在当前线程处理
+     * @return boolean,操作是否成功
+     */
+    protected boolean processSocket(NioChannel socket, boolean dispatch) {
         try {
             if (executor == null) { // 如果线程池是空
                 createExecutor();
+            }
+            // 设置通道的超时时间的起始时间量  这里是最新的，这样 超过界限（此处是起点）才会关闭通道
+            socket.access();
+            SocketProcessor sp = socketProcessorPool.poll();
+            if (sp == null) {
+                sp = new SocketProcessor(socket);
             } else {
-                // 设置通道的超时时间的起始时间量  这里是最新的，这样 超过界限（此处是起点）才会关闭通道
-                socket.access();
-                executor.execute(new SocketProcessor(socket));
+                sp.reset(socket);
+            }
+            sp.enqueueTime = System.nanoTime();
+            // 在 SocketProcessor.run 运行完时减掉
+            inflightCount.incrementAndGet();
+            try {
+                if (dispatch) {
+                    executor.execute(sp);
+                } else {
+                    sp.run();
+                }
+            } catch (Throwable t) {
+                inflightCount.decrementAndGet();
+                throw t;
             }
+        } catch (RejectedExecutionException e) {
+            // 队列满了，直接返回 503，由 Poller 关闭通道
+            rejectedCount.incrementAndGet();
+            log.warn("请求队列已满 [{}]，拒绝通道 [{}] 的请求", maxQueueSize, socket);
+            sendServiceUnavailable(socket);
+            return false;
         } catch (Throwable t) {
             // This means we got an OOM or similar creating a thread, or that
             // the pool and its queue are full
@@ -283,6 +790,26 @@ public class NioEndpoint {
 
 
 
+    /**
+     * 不经过容器，直接发送预先编码好的 503 响应
+     * 只在请求的边界上发送，上一个响应还没发送完时直接关闭
+     * 非阻塞地尝试一次，发不出去就算了，调用者随后会关闭通道
+     *
+     * @param socket NioChannel
+     */
+    private void sendServiceUnavailable(NioChannel socket) {
+        if (socket.hasPendingWrite()) return;
+        try {
+            socket.discardInput();
+            SocketChannel channel = socket.getIOChannel();
+            channel.write(ByteBuffer.wrap(serviceUnavailable));
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            log.debug("发送 503 失败 [{}]", socket, e);
+        }
+    }
+
+
     /*------------------------------------------SocketProcessor*/
 
     /**
@@ -294,25 +821,61 @@ public class NioEndpoint {
     protected class SocketProcessor implements Runnable {
 
         protected NioChannel socket;
+        /** 放入线程池队列的时间 */
+        long enqueueTime;
 
         public SocketProcessor(NioChannel socket) {
             this.socket = socket;
         }
 
+        public void reset(NioChannel socket) {
+            this.socket = socket;
+        }
+
         @Override
         public void run() {
-            // process(socket)真正的处理，进行读和写
-            /** handler是可以根据 setHandle进行真正的设置的 */
-            if (handler.process(socket) == SocketState.CLOSED) {
+            try {
+                doRun();
+            } finally {
+                inflightCount.decrementAndGet();
+                // 放回对象池，下次 Poller 派发事件时复用
+                socket = null;
+                if (running) {
+                    socketProcessorPool.offer(this);
+                }
+            }
+        }
+
+        private void doRun() {
+            SocketState state;
+            long waited = System.nanoTime() - enqueueTime;
+            if (maxQueueTime > 0 && waited > TimeUnit.MILLISECONDS.toNanos(maxQueueTime)) {
+                // 在队列里等太久了，客户端很可能已经放弃了，不再交给容器处理
+                expiredCount.incrementAndGet();
+                log.warn("通道 [{}] 的请求在队列里等待了 [{}ms]，返回 503", socket, TimeUnit.NANOSECONDS.toMillis(waited));
+                sendServiceUnavailable(socket);
+                state = SocketState.CLOSED;
+            } else {
+                // process(socket)真正的处理，进行读和写
+                /** handler是可以根据 setHandle进行真正的设置的 */
+                state = handler.process(socket);
+            }
+            if (state == SocketState.OFFLOAD && !processSocket(socket, true)) {
+                // 线程池拒绝了，processSocket 里已经发送了 503
+                state = SocketState.CLOSED;
+            }
+            if (state == SocketState.CLOSED) {
                 // 在Handler类里面的操作失败之后，进行通道的关闭，并且将通道置为空，可以被回收
                 try {
                     try {socket.close();} catch (Exception ignore){}
                     // socket不为空并且是打开的，就进行关闭操作
                     if (socket != null && socket.isOpen()) {
                         socket.close(true);
-                        // 将映射关系也释放掉
-                        handler.release(socket);
                     }
+                    // 将映射关系也释放掉，并归还读写 buffer
+                    handler.release(socket);
+                    // 释放一个连接名额
+                    countDownConnection(socket);
                 } catch ( Exception x ) {
                     log.error("",x);
                 }
@@ -2,22 +2,35 @@ package com.ryou.tomcat.net;
 
 
 import ch.qos.logback.classic.Logger;
+import com.ryou.tomcat.net.util.NioBufferPool;
+import com.ryou.tomcat.net.util.SendfileState;
+import com.ryou.tomcat.net.util.TimeoutType;
+import com.ryou.tomcat.net.util.TimingWheel;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.Iterator;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @Author: 汉高鼠刘邦
  * @Date: 2021/3/7 12:10
  * 轮询器：将Acceptor获得的连接封装成NioChannel之后，在此处进行 处理
  * + selector进行各自的事件进行分配
- * + 超时处理
+ * + 超时处理：每个 poller 一个时间轮，只有在 poller 上等待事件的通道才会挂在时间轮上
+ * + 负载均衡：记录注册的通道数和最近的就绪事件速率，新连接交给负载最小的 poller，
+ *   负载明显高于其他 poller 时，把空闲的长连接迁移过去
+ * + 零拷贝发送文件：通道可写时直接在 poller 线程里 transferTo，见 {@link #processSendfile}
  */
 public class Poller implements Runnable {
     final static Logger log = (Logger) LoggerFactory.getLogger(Poller.class);
@@ -32,16 +45,104 @@ public class Poller implements Runnable {
     // events 队列，此类的核心
     // 此处直接存储
     private final ConcurrentLinkedQueue<PollerEvent> events = new ConcurrentLinkedQueue<>();
+    /**
+     * 等待设置关注事件的通道，以 {@link NioChannel#nextUpdate} 串起来的栈
+     * 工作线程 CAS 压入，poller 线程一次全部取出，每个请求不需要分配任何对象
+     */
+    private final AtomicReference<NioChannel> interestUpdates = new AtomicReference<>();
     private volatile boolean close = false;
-    /** 下次检查通道是否超时的时间，保证有一个最小时间间隔 */
-    protected long nextExpiration = 0;//optimize expiration handling
+    /** 运行此 poller 的线程 */
+    private volatile Thread thread;
+    /** 时间轮的精度 1s，一圈 128s */
+    private static final long TIMEOUT_TICK = 1000;
+    private static final int TIMEOUT_WHEEL_SIZE = 128;
+    /** 通道读、写、长连接超时的时间轮，只由 poller 线程操作 */
+    private final TimingWheel<NioChannel> timeouts = new TimingWheel<>(TIMEOUT_TICK, TIMEOUT_WHEEL_SIZE);
+    /** 注册在此 poller 上的通道，从这个分区借用读写 buffer */
+    private final NioBufferPool.Arena bufferArena;
+
+    /** 负载统计和迁移的周期 */
+    private static final long LOAD_WINDOW = 1000;
+    /** 就绪速率的指数移动平均系数，越大越偏向最近一个周期 */
+    private static final double READY_RATE_ALPHA = 0.3;
+    /** 每秒一个就绪事件折算成多少个空闲连接的负载 */
+    private static final double READY_RATE_WEIGHT = 1.0;
+    /** 两个 poller 的通道数至少相差这么多才迁移，避免来回搬动 */
+    private static final int REBALANCE_MIN_DIFF = 16;
+    /** 每个周期最多迁移的通道数 */
+    private static final int REBALANCE_BATCH = 64;
+    /** 分配给此 poller、还没有关闭的通道数 */
+    private final AtomicInteger channelCount = new AtomicInteger();
+    /** 每秒就绪事件数的移动平均，只由 poller 线程写 */
+    private volatile double readyRate = 0;
+    private int readyInWindow = 0;
+    private long windowStart = System.currentTimeMillis();
+    /** 迁移出去、迁移进来的通道数 */
+    private final AtomicLong migratedOut = new AtomicLong();
+    private final AtomicLong migratedIn = new AtomicLong();
+    /**
+     * 从上一次 select 返回之后是否已经唤醒过 selector
+     * 同一轮里后面的注册不用再唤醒，poller 在下一轮 select 之前会处理 events 队列里的所有事件
+     */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    /** 调用 selector.wakeup() 的次数、被合并掉的次数 */
+    private final AtomicLong wakeupsIssued = new AtomicLong();
+    private final AtomicLong wakeupsSaved = new AtomicLong();
 
-    public Poller(NioEndpoint endPoint) throws IOException {
+    public Poller(NioEndpoint endPoint, NioBufferPool.Arena bufferArena) throws IOException {
         this.endPoint = endPoint;
+        this.bufferArena = bufferArena;
         // 复用器开启
         selector = Selector.open();
     }
 
+    public NioBufferPool.Arena getBufferArena() {
+        return bufferArena;
+    }
+
+    public NioEndpoint getEndpoint() {
+        return endPoint;
+    }
+
+    /**
+     * 当前线程是否是此 poller 的线程，事件循环模式下 Processor 据此判断是否要把阻塞的请求交给线程池
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public int getChannelCount() {
+        return channelCount.get();
+    }
+
+    public double getReadyRate() {
+        return readyRate;
+    }
+
+    /**
+     * 负载 = 通道数 + 每秒就绪事件数 * 权重
+     * 大量空闲的长连接和少量繁忙的连接都会让 poller 变忙
+     */
+    public double getLoad() {
+        return channelCount.get() + readyRate * READY_RATE_WEIGHT;
+    }
+
+    public long getMigratedOut() {
+        return migratedOut.get();
+    }
+
+    public long getMigratedIn() {
+        return migratedIn.get();
+    }
+
+    public long getWakeupsIssued() {
+        return wakeupsIssued.get();
+    }
+
+    public long getWakeupsSaved() {
+        return wakeupsSaved.get();
+    }
+
     /**
      * 该方法会一直循环，直到 poller.destroy() 被调用。
      * 在此处轮询 selector里面所注册的channel，进行分别处理channel的读写事件
@@ -49,6 +150,7 @@ public class Poller implements Runnable {
     // poller线程的运行方法
     @Override
     public void run() {
+        thread = Thread.currentThread();
         int keyCount = 0;
         while (true) {
             try {
@@ -64,11 +166,15 @@ public class Poller implements Runnable {
                     // 这样就不用设置为 很短时间循环一次，导致资源的浪费
 
                     // 已经有多少个读写事件需要进行处理
-                    keyCount = selector.select(5000); // 此方法会阻塞 超过5000毫秒的时间，就会跳出阻塞
+                    // 有通道在等待超时的话，最多阻塞一个时间轮的精度
+                    keyCount = selector.select(timeouts.size() > 0 ? TIMEOUT_TICK : LOAD_WINDOW);
+                    // 之后的注册需要重新唤醒，在这之前加入的事件下一轮 event() 会处理
+                    wakeupPending.set(false);
+                    readyInWindow += keyCount;
                 }
                 // 如果poller已经关闭了
                 else if (close) { // 处理关闭
-                    timeout(0);
+                    closeAll();
                     break;
                 }
             } catch (IOException e) {
@@ -80,8 +186,7 @@ public class Poller implements Runnable {
             Iterator<SelectionKey> iterator =
                     keyCount > 0 ? selector.selectedKeys().iterator() : null;
 
-            if (iterator == null) continue;
-            while (iterator.hasNext()) {
+            while (iterator != null && iterator.hasNext()) {
                 SelectionKey sk = iterator.next();
                 NioChannel attachment = (NioChannel) sk.attachment();
                 iterator.remove();
@@ -93,94 +198,354 @@ public class Poller implements Runnable {
                     /**
                      * 返回true只是表明 此通道被 放入 线程池进行处理而已，并没有说明此通道可以被完美处理
                      */
+                    // 交给工作线程处理期间不会超时，处理完再次注册时重新调度
+                    timeouts.cancel(attachment.getTimeoutNode());
+                    // 零拷贝发送文件直接在 poller 线程里进行，不占用工作线程
+                    if (attachment.getSendfileData() != null && sk.isWritable()) {
+                        processSendfile(sk, attachment, false);
+                        continue;
+                    }
                     log.info("*********处理来自客户端的连接  [{}]", attachment);
+                    // 交给工作线程期间不再关注任何事件，防止重复派发，处理完后由 updateInterest 恢复
+                    // 必须在交给工作线程之前设置，否则工作线程可能已经关闭了通道，key 已经被取消
+                    sk.interestOps(0);
+                    attachment.setInterestOps(0);
                     if (!endPoint.processSocket(attachment)) {
-                        try {
-                            attachment.close();
-                            sk.cancel();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
+                        cancelledKey(sk);
                     }
-                    // 立即将sk设置为连接状态，防止多次进行循环
-                    sk.interestOps(SelectionKey.OP_CONNECT);
                 }
             }
             // 检查连接是否超时
-            timeout(keyCount);
+            timeout();
+            // 优雅关闭期间，空闲的长连接不用再等下一个请求
+            if (endPoint.isDraining()) {
+                closeIdle();
+                continue;
+            }
+            // 更新负载，必要时迁移空闲连接
+            balance();
         }
     }
 
     /**
-     * 检查是否有通道读写超时
-     * 如果发生了超时，就进行关闭通道
-     * @param keyCount int
-     */
-    private void timeout(int keyCount) {
-        // 获取系统当前时间
-        long nowTime = System.currentTimeMillis();
-        // 如果发生以下情况，就不需要进行关闭操作
-        // 1.selector里面注册的channel数小于零 或者 events队列里面没有事务
-        // 2.对比上一次的检查时间 还未超过
-        // 3.poller还未关闭
-        if (nextExpiration > 0 && (keyCount > 0) && (nowTime < nextExpiration)) {
-            return;
+     * 每个统计周期更新一次就绪速率，然后检查是否需要把空闲连接迁移到负载最小的 poller
+     */
+    private void balance() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - windowStart;
+        if (elapsed < LOAD_WINDOW) return;
+        double rate = readyInWindow * 1000.0 / elapsed;
+        readyRate = READY_RATE_ALPHA * rate + (1 - READY_RATE_ALPHA) * readyRate;
+        readyInWindow = 0;
+        windowStart = now;
+
+        double threshold = endPoint.getPollerRebalanceThreshold();
+        if (threshold <= 0) return;
+        Poller target = endPoint.getPoller0();
+        if (target == this) return;
+        double load = getLoad();
+        double targetLoad = target.getLoad();
+        int diff = channelCount.get() - target.getChannelCount();
+        if (load <= targetLoad * (1 + threshold) || diff < REBALANCE_MIN_DIFF) return;
+        migrate(target, Math.min(diff / 2, REBALANCE_BATCH));
+    }
+
+    /**
+     * 通道是不是在等待下一个请求的空闲长连接：只关注 OP_READ、超时类型是 KEEP_ALIVE、没有待发送的数据，
+     * 此时没有工作线程在处理它，poller 线程是唯一操作它的线程
+     */
+    private boolean isIdleKeepAlive(SelectionKey key) {
+        NioChannel socket = (NioChannel) key.attachment();
+        try {
+            return socket != null && key.isValid() && key.interestOps() == SelectionKey.OP_READ
+                    && socket.getTimeoutType() == TimeoutType.KEEP_ALIVE && !socket.hasPendingWrite();
+        } catch (CancelledKeyException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 把空闲的长连接迁移到另一个 poller，只迁移 {@link #isIdleKeepAlive} 的通道
+     *
+     * @param target 负载最小的 poller
+     * @param max 最多迁移的通道数
+     */
+    private void migrate(Poller target, int max) {
+        int moved = 0;
+        for (SelectionKey key : selector.keys()) {
+            if (moved >= max) break;
+            if (!isIdleKeepAlive(key)) continue;
+            NioChannel socket = (NioChannel) key.attachment();
+            timeouts.cancel(socket.getTimeoutNode());
+            key.attach(null);
+            key.cancel();
+            // 先加到目标 poller 再从这里减掉，通道同时关闭时计数不会丢
+            target.channelCount.incrementAndGet();
+            target.register(socket, SelectionKey.OP_READ);
+            channelCount.decrementAndGet();
+            moved++;
+        }
+        if (moved > 0) {
+            migratedOut.addAndGet(moved);
+            target.migratedIn.addAndGet(moved);
+            log.debug("迁移 [{}] 个空闲连接到负载更小的 poller", moved);
         }
+    }
+
+    /**
+     * 通道是不是可以直接关闭的空闲连接：{@link #isIdleKeepAlive} 的长连接，
+     * 或者接收之后还没有开始第一个请求的连接（比如浏览器预连接），
+     * 超时类型还是 READ，但是只关注 OP_READ、没有关联的 Processor、读写 buffer 里也没有数据
+     */
+    private boolean isIdle(SelectionKey key) {
+        if (isIdleKeepAlive(key)) return true;
+        NioChannel socket = (NioChannel) key.attachment();
+        try {
+            return socket != null && key.isValid() && key.interestOps() == SelectionKey.OP_READ
+                    && !endPoint.getHandler().isProcessing(socket) && !socket.hasBufferedData();
+        } catch (CancelledKeyException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 优雅关闭时关闭所有 {@link #isIdle} 的连接，
+     * 正在处理请求的连接在响应完成后由 Processor 关闭
+     */
+    private void closeIdle() {
+        int closed = 0;
         for (SelectionKey key : selector.keys()) {
+            if (!isIdle(key)) continue;
+            cancelledKey(key);
+            closed++;
+        }
+        if (closed > 0) {
+            log.debug("优雅关闭：关闭 [{}] 个空闲连接", closed);
+        }
+    }
 
-            try {
-                NioChannel channel = (NioChannel) key.attachment();
-                // 如果附加对象，直接关闭通道
-                if (channel == null) cancelledKey(key);
-                else if (key.interestOps() == SelectionKey.OP_READ || key.interestOps() == SelectionKey.OP_WRITE) {
-                    // 仅仅检测当前关注读或写的通道
-                    // getLastAccess()获取到的是  channel创建的时间
-                    long delta = nowTime - channel.getLastAccess();
-                    boolean isTimedOut = delta > endPoint.getSoTimeout();
-                    if (isTimedOut) {
-                        log.debug("通道 [{}] 读或写超时", channel);
-                        // 超时关闭连接
-                        key.interestOps(SelectionKey.OP_CONNECT);
-                        cancelledKey(key);
-                        // 唤醒阻塞中的selector
-                        selector.wakeup();
+    /**
+     * 零拷贝发送文件：先把写缓冲区里的响应头发出去，再用 FileChannel.transferTo 发送文件，
+     * 直到发送缓冲区满了或者文件发送完毕
+     *
+     * @param sk 通道在此 poller 上的 key，由 Processor 调用时为 null
+     * @param socket NioChannel
+     * @param calledByProcessor true - Processor 写完响应头后在工作线程里第一次尝试发送，
+     *                          结果交给 Processor 处理；false - poller 线程收到 OP_WRITE 后继续发送，
+     *                          发送完按照 {@link SendfileData.KeepAliveState} 处理连接
+     * @return 发送的结果
+     */
+    public SendfileState processSendfile(SelectionKey sk, NioChannel socket, boolean calledByProcessor) {
+        SendfileData sd = socket.getSendfileData();
+        try {
+            // 1. 响应头，没发送完就等下一次可写
+            if (socket.flush(false)) {
+                // 2. 文件
+                FileChannel fc = sd.channel();
+                while (sd.length > 0) {
+                    long n = fc.transferTo(sd.pos, sd.length, socket.getIOChannel());
+                    if (n > 0) {
+                        sd.pos += n;
+                        sd.length -= n;
+                        socket.access();
+                    } else if (sd.pos >= fc.size()) {
+                        // 文件在发送期间被截断了，Content-Length 已经发出去，只能关闭连接
+                        throw new EOFException("文件 [" + sd.fileName + "] 被截断");
+                    } else {
+                        // 发送缓冲区满了
+                        break;
                     }
                 }
             }
-            catch (CancelledKeyException ckx) {
-                log.debug("", ckx);
+            if (sd.length > 0 || socket.hasPendingWrite()) {
+                log.debug("通道 [{}] 暂时不可写，文件 {} 等待 OP_WRITE 继续发送", socket, sd);
+                if (!calledByProcessor) {
+                    socket.setTimeoutType(TimeoutType.WRITE);
+                    sk.interestOps(SelectionKey.OP_WRITE);
+                    socket.setInterestOps(SelectionKey.OP_WRITE);
+                    scheduleTimeout(socket);
+                }
+                return SendfileState.PENDING;
+            }
+            log.debug("通道 [{}] 文件 [{}] 发送完毕", socket, sd.fileName);
+            socket.setSendfileData(null);
+            sd.close();
+            if (!calledByProcessor) {
+                switch (sd.keepAliveState) {
+                    case OPEN:
+                        if (endPoint.getLendIdleBuffers()) {
+                            socket.releaseIdleBuffers();
+                        }
+                        socket.setTimeoutType(TimeoutType.KEEP_ALIVE);
+                        sk.interestOps(SelectionKey.OP_READ);
+                        socket.setInterestOps(SelectionKey.OP_READ);
+                        scheduleTimeout(socket);
+                        break;
+                    case PIPELINED:
+                        // 读 buffer 里的请求不会再触发 OP_READ，直接交给工作线程
+                        sk.interestOps(0);
+                        socket.setInterestOps(0);
+                        if (!endPoint.processSocket(socket)) {
+                            cancelledKey(sk);
+                        }
+                        break;
+                    default:
+                        cancelledKey(sk);
+                        break;
+                }
+            }
+            return SendfileState.DONE;
+        } catch (IOException | CancelledKeyException e) {
+            log.debug("通道 [{}] 发送文件 {} 失败", socket, sd, e);
+            if (!calledByProcessor && sk != null) {
+                cancelledKey(sk);
+            }
+            return SendfileState.ERROR;
+        }
+    }
+
+    /**
+     * 检查是否有通道读写超时
+     * 只检查时间轮上走过的格子，如果发生了超时，就进行关闭通道
+     */
+    private void timeout() {
+        timeouts.expire(System.currentTimeMillis(), this::expire);
+    }
+
+    /**
+     * 时间轮上到期的通道
+     * 如果期间调用过 {@link NioChannel#access()}，截止时间被推迟了，重新调度
+     * @param channel NioChannel
+     */
+    private void expire(NioChannel channel) {
+        SelectionKey key = channel.getIOChannel().keyFor(selector);
+        if (key == null) return;
+        try {
+            long deadline = channel.getLastAccess() + endPoint.getTimeout(channel.getTimeoutType());
+            if (deadline > System.currentTimeMillis()) {
+                timeouts.schedule(channel.getTimeoutNode(), deadline);
+                return;
+            }
+            log.debug("通道 [{}] {} 超时", channel, channel.getTimeoutType());
+            // 超时关闭连接
+            cancelledKey(key);
+        } catch (CancelledKeyException ckx) {
+            log.debug("", ckx);
+            cancelledKey(key);
+        }
+    }
+
+    /**
+     * 将通道挂到时间轮上，截止时间由最后操作时间和超时类型决定
+     */
+    private void scheduleTimeout(NioChannel channel) {
+        long deadline = channel.getLastAccess() + endPoint.getTimeout(channel.getTimeoutType());
+        timeouts.schedule(channel.getTimeoutNode(), deadline);
+    }
+
+    /**
+     * poller 关闭时，关闭所有注册的通道
+     */
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
                 cancelledKey(key);
             }
+            selector.close();
+        } catch (IOException e) {
+            log.debug("Selector close failed", e);
         }
+    }
 
-        // 设置下一次检查的时间点 TODO endPoint.socketProperties();来获取配置数据
-        nextExpiration = nowTime + 1000;
+    /**
+     * 新接收的连接分配给此 poller
+     * @param socket NioChannel
+     */
+    public void add(NioChannel socket) {
+        channelCount.incrementAndGet();
+        register(socket, SelectionKey.OP_READ);
+    }
 
+    /**
+     * 分配给此 poller 的通道关闭了，由 {@link NioEndpoint#countDownConnection(NioChannel)} 调用
+     */
+    void channelRemoved() {
+        channelCount.decrementAndGet();
     }
 
     /**
-     * 这里就直接将NioChannel加入events里面了
-     * TODO 通过NioSocketWrapper对NioChannel的封装，最后将NioSocketWrapper封装在PollerEvent中，最后加到PollerEvent队列
+     * 把通道注册到此 poller 的 Selector 上，只在新连接和迁移时调用，之后一直复用这个 key
+     * 处理完请求后恢复关注的事件用 {@link #updateInterest}
      * @param socket NioChannel
      * @param interestOps int 注册操作事件
      */
     public void register(NioChannel socket, int interestOps) {
         // 将轮询器传送给 socket
         socket.setPoller(this);
-        PollerEvent event = new PollerEvent(socket, interestOps);
+        socket.setInterestOps(interestOps);
+        events.add(new PollerEvent(socket));
+        wakeup(false);
+    }
+
+    /**
+     * 工作线程处理完通道后，恢复 key 关注的事件，并重新开始计算超时
+     * key 只由 poller 线程修改，工作线程把通道压入更新队列，poller 在下一轮 select 之前设置
+     * @param socket NioChannel
+     * @param interestOps SelectionKey.OP_READ 或者 SelectionKey.OP_WRITE
+     */
+    public void updateInterest(NioChannel socket, int interestOps) {
+        socket.setInterestOps(interestOps);
+        // 事件循环模式下在 poller 线程里处理完的通道，直接设置
+        if (inEventLoop()) {
+            applyInterest(socket);
+            return;
+        }
+        NioChannel head;
+        do {
+            head = interestUpdates.get();
+            socket.nextUpdate = head;
+        } while (!interestUpdates.compareAndSet(head, socket));
+        wakeup(false);
+    }
 
-        //
-        events.add(event);
+    /**
+     * 把通道希望关注的事件设置到 key 上
+     */
+    private void applyInterest(NioChannel socket) {
+        SelectionKey key = socket.getSelectionKey();
+        if (key == null) return;
+        try {
+            key.interestOps(socket.getInterestOps());
+            scheduleTimeout(socket);
+        } catch (CancelledKeyException e) {
+            // 通道在等待期间被关闭了，确保连接名额和 buffer 已经释放
+            log.debug("通道 [{}] 已经关闭", socket);
+            cancelledKey(key);
+        }
+    }
 
-        /** 有请求来 ，就唤醒 event*/
-        // 唤醒 Selector 进行处理
+    /**
+     * 唤醒 Selector
+     * @param force true - 总是唤醒；false - 从上一次 select 返回之后只唤醒一次，
+     *              poller 线程自己加入的事件在下一轮 select 之前就会处理，不用唤醒
+     */
+    private void wakeup(boolean force) {
+        if (!force) {
+            if (inEventLoop()) return;
+            // keep-alive 的请求多时能省掉大量 wakeup 系统调用
+            if (!wakeupPending.compareAndSet(false, true)) {
+                wakeupsSaved.incrementAndGet();
+                return;
+            }
+        }
+        wakeupsIssued.incrementAndGet();
         selector.wakeup();
     }
 
 
     /**
-     *
-     * @return
+     * 注册新的通道，设置处理完请求的通道关注的事件
+     * @return 是否有事件
      */
     private boolean event () {
         boolean result = false;
@@ -189,16 +554,31 @@ public class Poller implements Runnable {
             event.run();
             events.remove(event);
         }
+        NioChannel socket = interestUpdates.getAndSet(null);
+        while (socket != null) {
+            result = true;
+            NioChannel next = socket.nextUpdate;
+            socket.nextUpdate = null;
+            applyInterest(socket);
+            socket = next;
+        }
         return result;
     }
 
 
     /**
-     * 销毁 ，将close设置为true，此poller就不会 继续循环下去了，而是直接跳出，停止运行
+     * 唤醒阻塞在 select 上的 poller 线程
+     */
+    public void wakeup() {
+        wakeup(true);
+    }
+
+    /**
+     * 销毁 ，将close设置为true，此poller就不会 继续循环下去了，而是关闭所有通道后跳出，停止运行
      */
     public void destroy() throws IOException {
         close = true;
-        selector.close();
+        selector.wakeup();
     }
 
 
@@ -210,6 +590,8 @@ public class Poller implements Runnable {
         // attach()里面是getAndSet()方法
         NioChannel socket = (NioChannel) key.attach(null);
         if (socket != null) {
+            // 从时间轮上移除
+            timeouts.cancel(socket.getTimeoutNode());
             // 释放连接可能占用的 Processor
             // 清理 存储在Handler里面的映射器 Map<NioChannel, Processor> connections 的channel
             endPoint.getHandler().release(socket);
@@ -225,28 +607,39 @@ public class Poller implements Runnable {
                 log.debug("Channel close failed", e);
             }
             // 释放一个连接名额
+            endPoint.countDownConnection(socket);
         }
     }
 
+    @Override
+    public String toString() {
+        return "Poller[channels=" + channelCount.get() + ", wakeups=" + wakeupsIssued.get()
+                + ", wakeupsSaved=" + wakeupsSaved.get() + ", migratedOut=" + migratedOut.get()
+                + ", migratedIn=" + migratedIn.get() + "]";
+    }
+
+
     // --------------------------------------------------  PollerEvent
     /**
-     *
+     * 新接收或者迁移过来的通道，在 poller 线程里注册到 Selector 上，每个连接在每个 poller 上只注册一次
      */
     class PollerEvent {
         NioChannel socket;
-        int ops;
-        public PollerEvent(NioChannel socket, int ops) {
+        public PollerEvent(NioChannel socket) {
             this.socket = socket;
-            this.ops = ops;
         }
 
         public void run() {
             try {
-                socket.getIOChannel().register(selector, ops, socket);
+                SelectionKey key = socket.getIOChannel().register(selector, socket.getInterestOps(), socket);
+                socket.setSelectionKey(key);
+                scheduleTimeout(socket);
             } catch (ClosedChannelException e) {
-                e.printStackTrace();
+                // 通道已经被关闭了，确保连接名额和 buffer 已经释放
+                log.debug("通道 [{}] 已经关闭", socket, e);
+                endPoint.getHandler().release(socket);
+                endPoint.countDownConnection(socket);
             }
         }
     }
-
 }
@@ -10,4 +10,9 @@ import com.ryou.tomcat.net.util.SocketState;
  */
 public interface Processor {
     SocketState process(NioChannel socket);
+
+    /**
+     * 重置处理器的状态，解除和通道的关联，以便放回对象池给下一个连接使用
+     */
+    void recycle();
 }
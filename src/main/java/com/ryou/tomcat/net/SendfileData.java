@@ -0,0 +1,81 @@
+package com.ryou.tomcat.net;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 21:10
+ *
+ * 用 {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} 发送的文件区间
+ *
+ * Servlet 通过请求属性声明要发送的文件，响应头写完之后由 Processor 交给 {@link Poller}，
+ * 发送缓冲区满了就等待 OP_WRITE 继续发送，不占用工作线程
+ */
+public class SendfileData {
+
+    /** 连接器支持零拷贝发送时，请求里有这个属性，值为 Boolean.TRUE */
+    public static final String SENDFILE_SUPPORTED_ATTR = "panda.sendfile.support";
+    /** 要发送的文件的绝对路径 */
+    public static final String SENDFILE_FILENAME_ATTR = "panda.sendfile.filename";
+    /** 文件区间的起始位置，Long */
+    public static final String SENDFILE_FILE_START_ATTR = "panda.sendfile.start";
+    /** 文件区间的结束位置（不包含），Long */
+    public static final String SENDFILE_FILE_END_ATTR = "panda.sendfile.end";
+
+    /** 发送完之后连接怎么处理 */
+    public enum KeepAliveState {
+        /** 关闭连接 */
+        NONE,
+        /** 读 buffer 里还有管道化的请求，接着处理 */
+        PIPELINED,
+        /** 等待下一个请求 */
+        OPEN
+    }
+
+    final String fileName;
+    /** 下一次发送的位置 */
+    long pos;
+    /** 还没有发送的字节数 */
+    long length;
+    KeepAliveState keepAliveState = KeepAliveState.NONE;
+    /** 第一次发送时才打开 */
+    FileChannel fchannel;
+
+    public SendfileData(String fileName, long pos, long length) {
+        this.fileName = fileName;
+        this.pos = pos;
+        this.length = length;
+    }
+
+    public void setKeepAliveState(KeepAliveState keepAliveState) {
+        this.keepAliveState = keepAliveState;
+    }
+
+    FileChannel channel() throws IOException {
+        if (fchannel == null) {
+            fchannel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        }
+        return fchannel;
+    }
+
+    /**
+     * 发送完毕或者连接关闭时关闭文件，可以重复调用
+     */
+    void close() {
+        if (fchannel != null) {
+            try {
+                fchannel.close();
+            } catch (IOException ignore) {
+            }
+            fchannel = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return fileName + "[pos=" + pos + ", remaining=" + length + "]";
+    }
+}
@@ -0,0 +1,101 @@
+package com.ryou.tomcat.net.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 18:10
+ *
+ * 有上限的计数器，用于限制最大连接数
+ * + 计数没有达到上限时 countUpOrAwait 立即返回，达到上限时阻塞，直到有连接关闭调用 countDown
+ * + 基于 AQS 的共享模式实现，计数本身是一个 AtomicLong，没有达到上限时不需要加锁
+ */
+public class LimitLatch {
+
+    private class Sync extends AbstractQueuedSynchronizer {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected int tryAcquireShared(int ignored) {
+            long newCount = count.incrementAndGet();
+            if (!released && newCount > limit) {
+                // 超过上限了，撤销计数，进入等待队列
+                count.decrementAndGet();
+                return -1;
+            }
+            return 1;
+        }
+
+        @Override
+        protected boolean tryReleaseShared(int arg) {
+            // releaseAll 传入 0，只唤醒不减计数
+            if (arg > 0) count.decrementAndGet();
+            return true;
+        }
+    }
+
+    private final Sync sync;
+    private final AtomicLong count;
+    private volatile long limit;
+    /** 为 true 时不再限制，用于关闭时唤醒所有等待的线程 */
+    private volatile boolean released = false;
+
+    /**
+     * @param limit 计数的上限
+     */
+    public LimitLatch(long limit) {
+        this.limit = limit;
+        this.count = new AtomicLong(0);
+        this.sync = new Sync();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * 修改上限，调大时不会唤醒已经在等待的线程，直到下一次 countDown
+     */
+    public void setLimit(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * 计数加一，达到上限时阻塞等待
+     */
+    public void countUpOrAwait() throws InterruptedException {
+        sync.acquireSharedInterruptibly(1);
+    }
+
+    /**
+     * 计数加一，达到上限时不等待
+     *
+     * @return 是否成功
+     */
+    public boolean tryCountUp() {
+        return sync.tryAcquireShared(1) > 0;
+    }
+
+    /**
+     * 计数减一，唤醒一个等待的线程
+     *
+     * @return 减一之后的计数
+     */
+    public long countDown() {
+        sync.releaseShared(1);
+        return count.get();
+    }
+
+    /**
+     * 不再限制，唤醒所有等待的线程
+     */
+    public boolean releaseAll() {
+        released = true;
+        return sync.releaseShared(0);
+    }
+}
@@ -7,23 +7,154 @@ import java.nio.ByteBuffer;
  * @Date: 2021/3/24 12:13
  *
  * NIO的读写buffer
+ *
+ * buffer 从 {@link NioBufferPool} 中借用，并且是懒加载的：只有通道真正进行读写时才会借用，
+ * 通道关闭时调用 {@link #release()} 归还
+ * 长连接等待下一个请求时可以调用 {@link #releaseIdle()} 先归还，下一个请求到达、读写时再借用
  */
 public class NioBufferHandler {
 
-    private final ByteBuffer readBuf;
-    private final ByteBuffer writeBuf;
+    private final NioBufferPool.Arena arena;
+    private final int readSize;
+    private final int writeSize;
+
+    private ByteBuffer readBuf;
+    private ByteBuffer writeBuf;
+
+    /** 是否已经归还，归还之后不再从池中借用 */
+    private boolean released = false;
+    private final NioBufferPool.LeakTracker tracker;
 
     /**
-     * 进行读写buffer的初始化
+     * 进行读写buffer的初始化，不使用 buffer 池
      * @param readSize 读buffer的大小
      * @param writeSize 写操作buffer的大小
      */
     public NioBufferHandler(int readSize, int writeSize) {
-        readBuf = ByteBuffer.allocateDirect(readSize);
-        writeBuf = ByteBuffer.allocateDirect(writeSize);
+        this(null, readSize, writeSize);
+    }
+
+    /**
+     * @param arena 借用 buffer 的分区，为空表示不使用 buffer 池
+     * @param readSize 读buffer的大小
+     * @param writeSize 写操作buffer的大小
+     */
+    public NioBufferHandler(NioBufferPool.Arena arena, int readSize, int writeSize) {
+        this.arena = arena;
+        this.readSize = readSize;
+        this.writeSize = writeSize;
+        tracker = arena == null ? null : arena.track(this);
+    }
+
+    /**
+     * 读 buffer 放不下完整的请求头时，换一个更大的 buffer，按池的级别向上取整
+     * 没有处理的数据复制到新 buffer 的开头，旧 buffer 归还到池中
+     *
+     * @param capacity 新 buffer 的最小容量
+     * @return 新的读 buffer，处于读模式
+     */
+    public synchronized ByteBuffer expandReadBuffer(int capacity) {
+        ByteBuffer old = getReadBuffer();
+        if (capacity <= old.capacity()) return old;
+        ByteBuffer buffer = borrow(capacity);
+        buffer.put(old);
+        buffer.flip();
+        giveBack(old);
+        readBuf = buffer;
+        return buffer;
+    }
+
+    /**
+     * 事件循环模式下发送缓冲区满了，响应剩下的数据都留在写 buffer 里，放不下时换一个更大的 buffer
+     * 已有的数据复制到新 buffer 的开头，旧 buffer 归还到池中
+     *
+     * @param capacity 新 buffer 的最小容量
+     * @return 新的写 buffer，处于写模式
+     */
+    public synchronized ByteBuffer expandWriteBuffer(int capacity) {
+        ByteBuffer old = getWriteBuffer();
+        if (capacity <= old.capacity()) return old;
+        ByteBuffer buffer = borrow(capacity);
+        old.flip();
+        buffer.put(old);
+        giveBack(old);
+        writeBuf = buffer;
+        return buffer;
+    }
+
+    /**
+     * 读 buffer 始终处于读模式，position 到 limit 之间是还没有处理的数据，
+     * 比如管道化请求中已经读到的下一个请求，刚借来的 buffer 里没有数据
+     */
+    public synchronized ByteBuffer getReadBuffer() {
+        if (readBuf == null) {
+            readBuf = borrow(readSize);
+            readBuf.limit(0);
+        }
+        return readBuf;
+    }
+
+    public synchronized ByteBuffer getWriteBuffer() {
+        if (writeBuf == null) writeBuf = borrow(writeSize);
+        return writeBuf;
+    }
+
+    private ByteBuffer borrow(int size) {
+        if (arena == null) return ByteBuffer.allocateDirect(size);
+        // 已经归还过了（比如通道关闭后还有线程在读写），不再从池中借用，避免泄露
+        if (released) return ByteBuffer.allocate(size);
+
+        ByteBuffer buffer = arena.allocate(size);
+        if (tracker != null && buffer.isDirect()) tracker.borrowedBytes += buffer.capacity();
+        return buffer;
+    }
+
+    private void giveBack(ByteBuffer buffer) {
+        if (arena == null || released) return;
+        if (tracker != null && buffer.isDirect()) tracker.borrowedBytes -= buffer.capacity();
+        arena.release(buffer);
+    }
+
+    /**
+     * 读 buffer 里有没有处理的数据，或者写 buffer 里有没发送的数据，不会借用 buffer
+     */
+    public synchronized boolean hasBufferedData() {
+        return (readBuf != null && readBuf.hasRemaining()) || (writeBuf != null && writeBuf.position() > 0);
+    }
+
+    /**
+     * 长连接空闲时归还 buffer，之后读写时重新借用
+     * 读 buffer 里还有没处理的数据（管道化的请求）、写 buffer 里还有没发送的数据时不归还
+     *
+     * @return 是否归还了
+     */
+    public synchronized boolean releaseIdle() {
+        if (arena == null || released) return false;
+        if (readBuf != null && readBuf.hasRemaining()) return false;
+        if (writeBuf != null && writeBuf.position() > 0) return false;
+        if (readBuf != null) {
+            giveBack(readBuf);
+            readBuf = null;
+        }
+        if (writeBuf != null) {
+            giveBack(writeBuf);
+            writeBuf = null;
+        }
+        return true;
     }
 
-    public ByteBuffer expand(ByteBuffer buffer, int remaining) {return buffer;}
-    public ByteBuffer getReadBuffer() {return readBuf;}
-    public ByteBuffer getWriteBuffer() {return writeBuf;}
+    /**
+     * 通道关闭时归还借用的 buffer，可以重复调用
+     */
+    public synchronized void release() {
+        if (released) return;
+        released = true;
+        if (arena == null) return;
+
+        arena.release(readBuf);
+        arena.release(writeBuf);
+        readBuf = null;
+        writeBuf = null;
+        arena.untrack(tracker);
+    }
 }
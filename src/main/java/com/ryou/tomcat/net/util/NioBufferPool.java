@@ -0,0 +1,245 @@
+package com.ryou.tomcat.net.util;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 10:20
+ *
+ * 按大小分级的直接内存 buffer 池，由所有连接共享
+ *
+ * + 大小分级：4KB、8KB、16KB、32KB、64KB，申请时向上取整到对应的级别
+ * + 每个 Poller 对应一个 {@link Arena}，减少线程之间的竞争
+ * + maxPooledBytes 限制每个 Arena 缓存的空闲内存，超过的部分直接丢弃交给 GC
+ * + maxDirectBytes 限制整个池分配的直接内存，超过后退化为堆内存，避免 OOM: Direct buffer memory
+ * + 泄露检测：{@link NioBufferHandler} 没有归还 buffer 就被 GC 回收时，记录日志并修正计数
+ */
+public class NioBufferPool {
+
+    private final static Logger log = (Logger) LoggerFactory.getLogger(NioBufferPool.class);
+
+    /** 最小的级别 4KB = 1 << 12 */
+    private static final int MIN_SHIFT = 12;
+    /** 级别个数，最大的级别是 64KB */
+    private static final int SIZE_CLASSES = 5;
+    public static final int MAX_POOLED_SIZE = 1 << (MIN_SHIFT + SIZE_CLASSES - 1);
+
+    private final Arena[] arenas;
+
+    /** 每个 Arena 最多缓存的空闲内存 */
+    private final long maxPooledBytes;
+    /** 整个池最多分配的直接内存（借出的 + 缓存的） */
+    private final long maxDirectBytes;
+    /** 当前已分配的直接内存 */
+    private final AtomicLong directBytes = new AtomicLong();
+
+    /** 是否开启泄露检测 */
+    private final boolean leakDetection;
+    private final ReferenceQueue<NioBufferHandler> leakQueue = new ReferenceQueue<>();
+    /** 持有 LeakTracker 的强引用，否则它自己会先被回收 */
+    private final Map<LeakTracker, Boolean> trackers = new ConcurrentHashMap<>();
+    private final AtomicLong leaks = new AtomicLong();
+
+    /**
+     * @param arenaCount Arena 的个数，一般等于 Poller 的个数
+     * @param maxPooledBytes 每个 Arena 最多缓存的空闲内存
+     * @param maxDirectBytes 整个池最多分配的直接内存
+     * @param leakDetection 是否开启泄露检测
+     */
+    public NioBufferPool(int arenaCount, long maxPooledBytes, long maxDirectBytes, boolean leakDetection) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.maxDirectBytes = maxDirectBytes;
+        this.leakDetection = leakDetection;
+        arenas = new Arena[Math.max(1, arenaCount)];
+        for (int i = 0; i < arenas.length; i++) {
+            arenas[i] = new Arena(i);
+        }
+    }
+
+    public Arena arena(int index) {
+        return arenas[index % arenas.length];
+    }
+
+    /**
+     * 计算 size 对应的级别，超过最大级别返回 -1
+     */
+    static int sizeClass(int size) {
+        if (size > MAX_POOLED_SIZE) return -1;
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(0, shift - MIN_SHIFT);
+    }
+
+    static int classSize(int sizeClass) {
+        return 1 << (MIN_SHIFT + sizeClass);
+    }
+
+    /**
+     * 为 NioBufferHandler 登记泄露检测
+     */
+    LeakTracker track(NioBufferHandler handler) {
+        if (!leakDetection) return null;
+        LeakTracker tracker = new LeakTracker(handler, leakQueue);
+        trackers.put(tracker, Boolean.TRUE);
+        return tracker;
+    }
+
+    void untrack(LeakTracker tracker) {
+        if (tracker != null) {
+            trackers.remove(tracker);
+            tracker.clear();
+        }
+    }
+
+    /**
+     * 处理已经被 GC 回收却没有归还 buffer 的 NioBufferHandler
+     */
+    private void reapLeaks() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) leakQueue.poll()) != null) {
+            trackers.remove(tracker);
+            long bytes = tracker.borrowedBytes;
+            if (bytes > 0) {
+                leaks.incrementAndGet();
+                // buffer 随着 NioBufferHandler 一起被回收了，修正计数
+                directBytes.addAndGet(-bytes);
+                log.warn("检测到 buffer 泄露：[{}B] 没有归还就被回收，请检查通道关闭时是否调用了 NioBufferHandler.release()", bytes);
+            }
+        }
+    }
+
+    public long getDirectBytes() {
+        return directBytes.get();
+    }
+
+    public long getPooledBytes() {
+        long total = 0;
+        for (Arena arena : arenas) {
+            total += arena.pooledBytes.get();
+        }
+        return total;
+    }
+
+    public long getLeakCount() {
+        return leaks.get();
+    }
+
+    @Override
+    public String toString() {
+        return "NioBufferPool[direct=" + getDirectBytes() + "B, pooled=" + getPooledBytes()
+                + "B, leaks=" + getLeakCount() + "]";
+    }
+
+    // --------------------------------------------------  Arena
+
+    /**
+     * 一个 Poller 使用的分区，每个级别一个空闲队列
+     */
+    public class Arena {
+        private final int index;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private final ConcurrentLinkedQueue<ByteBuffer>[] freeLists = new ConcurrentLinkedQueue[SIZE_CLASSES];
+        private final AtomicLong pooledBytes = new AtomicLong();
+        /** 命中缓存、新分配的次数 */
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        Arena(int index) {
+            this.index = index;
+            for (int i = 0; i < SIZE_CLASSES; i++) {
+                freeLists[i] = new ConcurrentLinkedQueue<>();
+            }
+        }
+
+        /**
+         * 申请一个不小于 size 的 buffer，返回的 buffer 处于可写状态
+         */
+        public ByteBuffer allocate(int size) {
+            if (leakDetection) reapLeaks();
+
+            int sizeClass = sizeClass(size);
+            if (sizeClass < 0) {
+                // 太大了，不缓存
+                misses.incrementAndGet();
+                return ByteBuffer.allocate(size);
+            }
+            ByteBuffer buffer = freeLists[sizeClass].poll();
+            if (buffer != null) {
+                pooledBytes.addAndGet(-buffer.capacity());
+                hits.incrementAndGet();
+                buffer.clear();
+                return buffer;
+            }
+
+            misses.incrementAndGet();
+            int capacity = classSize(sizeClass);
+            if (directBytes.addAndGet(capacity) > maxDirectBytes) {
+                directBytes.addAndGet(-capacity);
+                log.debug("直接内存已达上限 [{}B]，使用堆内存 buffer", maxDirectBytes);
+                return ByteBuffer.allocate(capacity);
+            }
+            return ByteBuffer.allocateDirect(capacity);
+        }
+
+        /**
+         * 归还 buffer，超过缓存上限的直接丢弃
+         */
+        public void release(ByteBuffer buffer) {
+            if (buffer == null || !buffer.isDirect()) return;
+
+            int capacity = buffer.capacity();
+            int sizeClass = sizeClass(capacity);
+            if (sizeClass < 0 || classSize(sizeClass) != capacity
+                    || pooledBytes.get() + capacity > maxPooledBytes) {
+                directBytes.addAndGet(-capacity);
+                return;
+            }
+            buffer.clear();
+            pooledBytes.addAndGet(capacity);
+            freeLists[sizeClass].offer(buffer);
+        }
+
+        LeakTracker track(NioBufferHandler handler) {
+            return NioBufferPool.this.track(handler);
+        }
+
+        void untrack(LeakTracker tracker) {
+            NioBufferPool.this.untrack(tracker);
+        }
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        @Override
+        public String toString() {
+            return "Arena-" + index + "[pooled=" + pooledBytes.get() + "B, hits=" + hits.get()
+                    + ", misses=" + misses.get() + "]";
+        }
+    }
+
+    // --------------------------------------------------  LeakTracker
+
+    /**
+     * 跟踪 NioBufferHandler 借出的直接内存大小
+     */
+    static final class LeakTracker extends PhantomReference<NioBufferHandler> {
+        volatile long borrowedBytes;
+
+        LeakTracker(NioBufferHandler referent, ReferenceQueue<NioBufferHandler> queue) {
+            super(referent, queue);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.ryou.tomcat.net.util;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 15:30
+ *
+ * 临时 Selector 池
+ * 工作线程在响应中途必须把数据写出去时（比如发送缓冲区已满），不再空转调用 write，
+ * 而是借一个临时 Selector 阻塞等待通道可写，并且有超时时间
+ * 读取请求体时数据还没到达，同样借一个临时 Selector 等待通道可读
+ */
+public final class NioSelectorPool {
+
+    private NioSelectorPool() { }
+
+    /** 最多缓存的 Selector 个数 */
+    private static final int MAX_SELECTORS = 200;
+    private static final ConcurrentLinkedQueue<Selector> selectors = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * 阻塞等待通道可写
+     *
+     * @param socket 非阻塞的通道
+     * @param timeout 超时时间，毫秒
+     * @throws SocketTimeoutException 超时仍然不可写
+     */
+    public static void awaitWritable(SocketChannel socket, long timeout) throws IOException {
+        await(socket, SelectionKey.OP_WRITE, timeout);
+    }
+
+    /**
+     * 阻塞等待通道可读
+     *
+     * @param socket 非阻塞的通道
+     * @param timeout 超时时间，毫秒
+     * @throws SocketTimeoutException 超时仍然不可读
+     */
+    public static void awaitReadable(SocketChannel socket, long timeout) throws IOException {
+        await(socket, SelectionKey.OP_READ, timeout);
+    }
+
+    private static void await(SocketChannel socket, int ops, long timeout) throws IOException {
+        Selector selector = get();
+        SelectionKey key = null;
+        try {
+            key = socket.register(selector, ops);
+            if (selector.select(timeout) == 0) {
+                throw new SocketTimeoutException("等待通道" + (ops == SelectionKey.OP_READ ? "可读" : "可写")
+                        + "超时 " + timeout + "ms");
+            }
+        } finally {
+            if (key != null) {
+                key.cancel();
+                // 让取消的 key 生效，Selector 才能给下一个通道复用
+                selector.selectNow();
+            }
+            selector.selectedKeys().clear();
+            put(selector);
+        }
+    }
+
+    private static Selector get() throws IOException {
+        Selector selector = selectors.poll();
+        if (selector != null) {
+            size.decrementAndGet();
+            return selector;
+        }
+        return Selector.open();
+    }
+
+    private static void put(Selector selector) {
+        if (size.incrementAndGet() <= MAX_SELECTORS) {
+            selectors.offer(selector);
+        } else {
+            size.decrementAndGet();
+            try {
+                selector.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.ryou.tomcat.net.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 16:40
+ *
+ * 无锁的有界对象池，用于回收 Processor、SocketProcessor 这类频繁创建的对象
+ *
+ * + 每个线程一个小缓存，同一个线程归还又取出时不需要任何同步
+ * + 线程缓存满了或者空了，再使用所有线程共享的无锁栈，栈是预先分配好的槽位数组，
+ *   归还时不需要为每个对象创建链表节点
+ * + 共享栈先用 CAS 修改计数占一个名额，再用 CAS 占一个槽位，
+ *   计数决定了从哪个槽位开始找，对象集中在数组的前面，和栈一样后进先出
+ * + 共享栈有上限，超过的对象直接丢弃交给 GC，突发流量过后不会一直占着内存
+ * + 池里没有对象时返回 null，由调用者自己创建
+ */
+public class ObjectPool<T> {
+
+    /** 每个线程最多缓存的对象数，0 表示不使用线程缓存 */
+    private final int threadCacheSize;
+    /** 共享栈最多缓存的对象数 */
+    private final int maxShared;
+
+    private final ThreadLocal<ThreadCache> caches;
+    /** 共享栈的槽位，null 表示空的 */
+    private final AtomicReferenceArray<T> shared;
+    /** 共享栈里的对象数，先修改计数再修改槽位，计数为 0 时不用查找槽位 */
+    private final AtomicInteger sharedSize = new AtomicInteger();
+
+    /** 命中、未命中、丢弃的次数 */
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+
+    /**
+     * @param threadCacheSize 每个线程最多缓存的对象数，对象的取出和归还不在同一个线程时应该设为 0
+     * @param maxShared 共享栈最多缓存的对象数
+     */
+    public ObjectPool(int threadCacheSize, int maxShared) {
+        this.threadCacheSize = Math.max(0, threadCacheSize);
+        this.maxShared = Math.max(0, maxShared);
+        shared = new AtomicReferenceArray<>(this.maxShared);
+        caches = this.threadCacheSize > 0 ? ThreadLocal.withInitial(ThreadCache::new) : null;
+    }
+
+    /**
+     * 取出一个对象
+     *
+     * @return 池里没有对象时返回 null
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        if (caches != null) {
+            ThreadCache cache = caches.get();
+            if (cache.size > 0) {
+                Object item = cache.items[--cache.size];
+                cache.items[cache.size] = null;
+                hits.increment();
+                return (T) item;
+            }
+        }
+
+        T item = pollShared();
+        if (item == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return item;
+    }
+
+    /**
+     * 从共享栈取出一个对象
+     *
+     * @return 共享栈是空的时返回 null
+     */
+    private T pollShared() {
+        int n;
+        do {
+            n = sharedSize.get();
+            if (n == 0) return null;
+        } while (!sharedSize.compareAndSet(n, n - 1));
+        // 从栈顶往下找，归还的线程可能已经占了名额还没放进槽位，找一圈没找到就放弃
+        for (int i = 0; i < maxShared; i++) {
+            int index = n - 1 - i;
+            if (index < 0) index += maxShared;
+            T item = shared.get(index);
+            if (item != null && shared.compareAndSet(index, item, null)) {
+                return item;
+            }
+        }
+        sharedSize.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 归还一个对象，调用前对象应该已经重置过了
+     *
+     * @return false 表示池满了，对象被丢弃
+     */
+    public boolean offer(T item) {
+        if (item == null) return false;
+        if (caches != null) {
+            ThreadCache cache = caches.get();
+            if (cache.size < threadCacheSize) {
+                cache.items[cache.size++] = item;
+                return true;
+            }
+        }
+
+        int n;
+        do {
+            n = sharedSize.get();
+            if (n >= maxShared) {
+                drops.increment();
+                return false;
+            }
+        } while (!sharedSize.compareAndSet(n, n + 1));
+        // 从栈顶往上找空槽位，取出的线程可能已经让出名额还没清空槽位，找一圈没找到就丢弃
+        for (int i = 0; i < maxShared; i++) {
+            int index = n + i;
+            if (index >= maxShared) index -= maxShared;
+            if (shared.get(index) == null && shared.compareAndSet(index, null, item)) {
+                return true;
+            }
+        }
+        sharedSize.decrementAndGet();
+        drops.increment();
+        return false;
+    }
+
+    /**
+     * 清空共享栈，线程缓存随线程一起回收
+     */
+    public void clear() {
+        while (pollShared() != null) {
+            // 继续
+        }
+    }
+
+    public int getSharedSize() {
+        return sharedSize.get();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getDrops() {
+        return drops.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ObjectPool[shared=" + getSharedSize() + ", hits=" + getHits()
+                + ", misses=" + getMisses() + ", drops=" + getDrops() + "]";
+    }
+
+    private final class ThreadCache {
+        private final Object[] items = new Object[threadCacheSize];
+        private int size = 0;
+    }
+}
@@ -0,0 +1,16 @@
+package com.ryou.tomcat.net.util;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 21:10
+ *
+ * 一次零拷贝发送文件的结果
+ */
+public enum SendfileState {
+    /** 发送缓冲区满了，等待 OP_WRITE 继续发送 */
+    PENDING,
+    /** 文件已经全部发送 */
+    DONE,
+    /** 发送失败，需要关闭连接 */
+    ERROR
+}
@@ -11,6 +11,10 @@ public enum SocketState {
     LONG,
     /** 发送 */
     WRITE,
+    /** 零拷贝发送文件，发送缓冲区满了，交给 Poller 等待 OP_WRITE 继续发送 */
+    SENDFILE,
+    /** 事件循环模式下请求映射到阻塞型 Servlet，交给线程池继续处理 */
+    OFFLOAD,
     /** 断开连接 */
     CLOSED
 }
@@ -0,0 +1,54 @@
+package com.ryou.tomcat.net.util;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 19:20
+ *
+ * 配合 {@link TaskThreadPool} 使用的任务队列
+ *
+ * JDK 的 ThreadPoolExecutor 只有在 offer 失败（队列满了）时才会创建超过 corePoolSize 的线程，
+ * 队列很大时线程数永远停在 corePoolSize，maxThreads 形同虚设
+ * 这里在线程数没有达到上限、也没有空闲线程时让 offer 返回 false，线程池就会先创建新线程，
+ * 线程数达到上限后才真正排队
+ */
+public class TaskQueue extends LinkedBlockingQueue<Runnable> {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient volatile TaskThreadPool parent = null;
+
+    /**
+     * @param capacity 队列容量
+     */
+    public TaskQueue(int capacity) {
+        super(capacity);
+    }
+
+    public void setParent(TaskThreadPool parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * 不管线程数，直接放进队列，用于线程池拒绝任务之后的重试
+     *
+     * @return 队列满了返回 false
+     */
+    public boolean force(Runnable task) {
+        return super.offer(task);
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        TaskThreadPool parent = this.parent;
+        if (parent == null) return super.offer(task);
+        int poolSize = parent.getPoolSize();
+        // 线程数已经达到上限，只能排队
+        if (poolSize >= parent.getMaximumPoolSize()) return super.offer(task);
+        // 有空闲的线程，排队后马上会被取走
+        if (parent.getSubmittedCount() <= poolSize) return super.offer(task);
+        // 没有空闲线程，让线程池创建新线程
+        return false;
+    }
+}
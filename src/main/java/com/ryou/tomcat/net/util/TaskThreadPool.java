@@ -0,0 +1,109 @@
+package com.ryou.tomcat.net.util;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 19:20
+ *
+ * 处理请求的线程池，和 {@link TaskQueue} 一起使用
+ * + 没有空闲线程时先把线程数加到 maximumPoolSize，再排队
+ * + 超过 corePoolSize 的线程空闲 keepAliveTime 之后退出
+ * + 记录已提交但还没执行完的任务数，TaskQueue 根据它判断有没有空闲线程
+ * + 线程数已满、队列也满了才会抛出 RejectedExecutionException
+ */
+public class TaskThreadPool extends ThreadPoolExecutor {
+
+    /** 已提交但还没有执行完的任务数，包括排队中的和正在执行的 */
+    private final AtomicInteger submittedCount = new AtomicInteger();
+    /** 队列长度的峰值 */
+    private final AtomicInteger peakQueueSize = new AtomicInteger();
+
+    /**
+     * @param corePoolSize 常驻的线程数
+     * @param maximumPoolSize 最大线程数
+     * @param keepAliveTime 超过 corePoolSize 的线程最长空闲时间，毫秒
+     * @param queue 任务队列
+     * @param namePrefix 线程名前缀
+     */
+    public TaskThreadPool(int corePoolSize, int maximumPoolSize, long keepAliveTime,
+                          TaskQueue queue, String namePrefix) {
+        super(corePoolSize, maximumPoolSize, keepAliveTime, TimeUnit.MILLISECONDS, queue,
+                new NamedThreadFactory(namePrefix));
+        queue.setParent(this);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        submittedCount.incrementAndGet();
+        try {
+            super.execute(command);
+        } catch (RejectedExecutionException e) {
+            // 线程池已经关闭，排进队列也不会再有线程执行，任务和它的通道会一直留在队列里
+            if (isShutdown()) {
+                submittedCount.decrementAndGet();
+                throw e;
+            }
+            // 可能是 TaskQueue 要求创建线程时，线程数恰好被其他线程加满了，再尝试排队
+            TaskQueue queue = (TaskQueue) getQueue();
+            if (!queue.force(command)) {
+                submittedCount.decrementAndGet();
+                throw e;
+            }
+            // 排队的同时线程池被关闭了，能从队列里拿回来说明不会被执行
+            if (isShutdown() && queue.remove(command)) {
+                submittedCount.decrementAndGet();
+                throw e;
+            }
+        }
+        int queued = getQueue().size();
+        int peak;
+        while (queued > (peak = peakQueueSize.get()) && !peakQueueSize.compareAndSet(peak, queued)) {
+            // 重试
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        submittedCount.decrementAndGet();
+    }
+
+    public int getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    public int getQueueSize() {
+        return getQueue().size();
+    }
+
+    public int getPeakQueueSize() {
+        return peakQueueSize.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TaskThreadPool[pool=" + getPoolSize() + "/" + getMaximumPoolSize()
+                + ", active=" + getActiveCount() + ", queued=" + getQueueSize()
+                + ", peakPool=" + getLargestPoolSize() + ", peakQueue=" + getPeakQueueSize() + "]";
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        NamedThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
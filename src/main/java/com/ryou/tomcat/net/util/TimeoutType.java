@@ -0,0 +1,16 @@
+package com.ryou.tomcat.net.util;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 14:05
+ *
+ * 通道在 Poller 上等待的事件对应的超时类型
+ */
+public enum TimeoutType {
+    /** 等待请求数据（新连接或请求数据不完整） */
+    READ,
+    /** 等待发送缓冲区可写 */
+    WRITE,
+    /** 长连接等待下一个请求 */
+    KEEP_ALIVE
+}
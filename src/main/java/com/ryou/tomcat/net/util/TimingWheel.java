@@ -0,0 +1,153 @@
+package com.ryou.tomcat.net.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 14:10
+ *
+ * 哈希时间轮，用于管理通道的超时
+ *
+ * + 时间被划分为 tickMillis 长度的格子，截止时间落在哪个格子，节点就挂在哪个格子的双向链表上
+ * + 添加、移除节点都是 O(1) 的
+ * + 每次只检查走过的格子，到期的代价只和真正超时的节点数有关，而不是所有的连接数
+ * + 截止时间超过一圈的节点会留在格子里，等转到它所在的那一圈才会到期
+ *
+ * 不是线程安全的，只能由所属的 Poller 线程操作
+ */
+public class TimingWheel<T> {
+
+    private final long tickMillis;
+    private final int mask;
+    /** 每个格子一个哨兵节点，组成环形双向链表 */
+    private final Node<T>[] slots;
+    /** 已经检查过的最后一个格子的序号 */
+    private long currentTick;
+    private int size = 0;
+
+    /** 到期节点的临时列表，避免回调里重新调度时修改正在遍历的链表 */
+    private final List<Node<T>> expired = new ArrayList<>();
+
+    /**
+     * @param tickMillis 每个格子的时间跨度
+     * @param wheelSize 格子数，会向上取整为 2 的幂
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, int wheelSize) {
+        this.tickMillis = tickMillis;
+        int n = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        mask = n - 1;
+        slots = new Node[n];
+        for (int i = 0; i < n; i++) {
+            Node<T> head = new Node<>(null);
+            head.prev = head;
+            head.next = head;
+            slots[i] = head;
+        }
+        currentTick = System.currentTimeMillis() / tickMillis;
+    }
+
+    /**
+     * 调度或者重新调度一个节点
+     *
+     * @param node 节点，已经调度过的会先从原来的格子移除
+     * @param deadline 截止时间，毫秒
+     */
+    public void schedule(Node<T> node, long deadline) {
+        if (node.isScheduled()) unlink(node);
+        node.deadline = deadline;
+        // 挂到截止时间之后的第一个格子，检查到这个格子时一定已经到期
+        // 已经检查过的格子不会再检查，过期的截止时间挂到下一个格子
+        long tick = Math.max(deadline / tickMillis + 1, currentTick + 1);
+        Node<T> head = slots[(int) (tick & mask)];
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        size++;
+    }
+
+    /**
+     * 取消一个节点，没有调度的节点忽略
+     */
+    public void cancel(Node<T> node) {
+        if (node.isScheduled()) unlink(node);
+    }
+
+    private void unlink(Node<T> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        size--;
+    }
+
+    /**
+     * 检查从上次到现在走过的格子，移除到期的节点并回调
+     *
+     * @param now 当前时间
+     * @param callback 到期回调，可以在回调里重新调度节点
+     * @return 到期的节点数
+     */
+    public int expire(long now, Consumer<T> callback) {
+        long nowTick = now / tickMillis;
+        if (nowTick <= currentTick) return 0;
+        // 超过一圈的话，每个格子只需要检查一次
+        long from = Math.max(currentTick + 1, nowTick - mask);
+        for (long tick = from; tick <= nowTick; tick++) {
+            Node<T> head = slots[(int) (tick & mask)];
+            Node<T> node = head.next;
+            while (node != head) {
+                Node<T> next = node.next;
+                if (node.deadline <= now) {
+                    unlink(node);
+                    expired.add(node);
+                }
+                node = next;
+            }
+        }
+        currentTick = nowTick;
+
+        int count = expired.size();
+        for (int i = 0; i < count; i++) {
+            callback.accept(expired.get(i).owner);
+        }
+        expired.clear();
+        return count;
+    }
+
+    /**
+     * @return 时间轮上的节点数
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * 时间轮上的节点，由拥有者创建一次并重复使用
+     */
+    public static final class Node<T> {
+        private final T owner;
+        private long deadline;
+        private Node<T> prev;
+        private Node<T> next;
+
+        public Node(T owner) {
+            this.owner = owner;
+        }
+
+        public boolean isScheduled() {
+            return next != null;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.ryou.tomcat.utils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 21:40
+ *
+ * 直接内存 buffer 的工具类
+ *
+ * 直接内存和内存映射的 buffer 要等 GC 回收对象时才会释放，大文件映射很快就会耗尽地址空间，
+ * 这里通过反射立即释放：Java 9 及以上用 Unsafe.invokeCleaner，Java 8 用 DirectBuffer.cleaner().clean()
+ */
+public final class ByteBufferUtils {
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    private static final Method CLEANER;
+    private static final Method CLEAN;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        Method cleaner = null;
+        Method clean = null;
+        try {
+            Class<?> clazz = Class.forName("sun.misc.Unsafe");
+            Field field = clazz.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = clazz.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Throwable t) {
+            // Java 8 没有 invokeCleaner
+            invokeCleaner = null;
+            try {
+                ByteBuffer probe = ByteBuffer.allocateDirect(1);
+                cleaner = probe.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                clean = cleaner.getReturnType().getMethod("clean");
+                clean.invoke(cleaner.invoke(probe));
+            } catch (Throwable ignore) {
+                cleaner = null;
+                clean = null;
+            }
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        CLEANER = cleaner;
+        CLEAN = clean;
+    }
+
+    private ByteBufferUtils() { }
+
+    /**
+     * 立即释放直接内存或者解除内存映射，之后不能再访问这个 buffer 和它的任何 duplicate、slice，
+     * 否则 JVM 会崩溃，调用者要保证没有线程还在使用
+     *
+     * @param buf 直接内存 buffer，不能是 duplicate 或 slice
+     * @return 是否释放成功，不支持时返回 false，等待 GC 回收
+     */
+    public static boolean cleanDirectBuffer(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect()) return false;
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buf);
+                return true;
+            }
+            if (CLEANER != null) {
+                Object cleaner = CLEANER.invoke(buf);
+                if (cleaner != null) {
+                    CLEAN.invoke(cleaner);
+                    return true;
+                }
+            }
+        } catch (Throwable ignore) {
+        }
+        return false;
+    }
+}
@@ -0,0 +1,208 @@
+package com.ryou.tomcat.http;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/18 00:15
+ *
+ * 请求行和请求头的逐字节解析：请求在任意一个字节处被拆开，解析结果都一样
+ */
+public class InputBufferTest {
+
+    private static final byte[] REQUEST = bytes("GET /j2ee2/hello?name=Tom&age=18 HTTP/1.1\r\n"
+            + "Host: localhost:8888\r\n"
+            + "User-Agent:  curl/7.68.0 \t\r\n"
+            + "Accept: */*\r\n"
+            + "X-Empty:\r\n"
+            + "Content-Length: 5\r\n"
+            + "\r\n"
+            + "hello");
+
+    @BeforeAll
+    static void quiet() {
+        // 每次解析都会打日志，拆包的用例要解析几百次
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+    }
+
+    @Test
+    void parseWholeRequest() throws IOException {
+        Parser p = new Parser(4096);
+        p.socket.feed(REQUEST);
+        assertTrue(p.parse());
+        assertRequest(p, "");
+    }
+
+    @Test
+    void splitAtEveryByte() throws IOException {
+        for (int split = 1; split < REQUEST.length; split++) {
+            Parser p = new Parser(4096);
+            p.socket.feed(REQUEST, 0, split).feed(REQUEST, split, REQUEST.length);
+            assertTrue(p.parse(), "split " + split);
+            assertRequest(p, "split " + split);
+        }
+    }
+
+    @Test
+    void resumeAfterEveryByte() throws IOException {
+        // 每次只到达一个字节，Poller 每次通知可读时继续解析
+        Parser p = new Parser(4096);
+        int headerEnd = REQUEST.length - 5;
+        for (int i = 0; i < headerEnd; i++) {
+            p.socket.feed(REQUEST, i, i + 1);
+            assertEquals(i == headerEnd - 1, p.parse(), "byte " + i);
+        }
+        p.socket.feed(REQUEST, headerEnd, REQUEST.length);
+        assertRequest(p, "");
+    }
+
+    @Test
+    void growReadBufferForLargeHeaders() throws IOException {
+        // 读 buffer 只有 64 字节，请求头放不下时扩大
+        for (int split = 1; split < REQUEST.length; split++) {
+            Parser p = new Parser(64);
+            p.socket.feed(REQUEST, 0, split).feed(REQUEST, split, REQUEST.length);
+            assertTrue(p.parse(), "split " + split);
+            assertRequest(p, "split " + split);
+        }
+    }
+
+    @Test
+    void pipelinedRequests() throws IOException {
+        byte[] two = bytes("GET /a HTTP/1.1\r\nHost: x\r\n\r\n\r\nPOST /b HTTP/1.1\r\nHost: y\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n");
+        for (int split = 1; split < two.length; split++) {
+            Parser p = new Parser(4096);
+            p.socket.feed(two, 0, split).feed(two, split, two.length);
+            assertTrue(p.parse(), "split " + split);
+            assertEquals("/a", p.request.getUri(), "split " + split);
+            p.in.recycle();
+            assertTrue(p.parse(), "split " + split);
+            assertEquals("POST", p.request.getMethod(), "split " + split);
+            assertEquals("/b", p.request.getUri(), "split " + split);
+            assertEquals("y", p.request.getHeader("host"), "split " + split);
+            assertTrue(p.request.isChunked(), "split " + split);
+            assertFalse(p.in.hasBufferedData(), "split " + split);
+        }
+    }
+
+    @Test
+    void bareLineFeeds() throws IOException {
+        Parser p = new Parser(4096);
+        p.socket.feed(bytes("\r\n\nGET /x HTTP/1.0\nHOST: h\nConnection: close\n\n"));
+        assertTrue(p.parse());
+        assertEquals("/x", p.request.getUri());
+        assertEquals("HTTP/1.0", p.request.getProtocol());
+        assertEquals("h", p.request.getHeader("Host"));
+        assertTrue(p.request.isConnectionClose());
+        assertNull(p.request.getQuery());
+    }
+
+    @Test
+    void rejectMalformedRequestLine() {
+        for (String bad : new String[]{" / HTTP/1.1\r\n\r\n", "GET\r\n\r\n", "GET  HTTP/1.1\r\n\r\n",
+                "GET /x\r\n\r\n", "GET /x?y\r\n\r\n"}) {
+            Parser p = new Parser(4096);
+            p.socket.feed(bytes(bad));
+            IOException e = assertThrows(IOException.class, p::parse, bad);
+            assertFalse(e instanceof HeaderTooLargeException, bad);
+        }
+    }
+
+    @Test
+    void rejectMalformedHeaders() {
+        for (String bad : new String[]{"GET / HTTP/1.1\r\nHost x\r\n\r\n", "GET / HTTP/1.1\r\nHost: x\r\n\rX"}) {
+            Parser p = new Parser(4096);
+            p.socket.feed(bytes(bad));
+            assertThrows(IOException.class, p::parse, bad);
+        }
+    }
+
+    @Test
+    void headerTooLarge() throws IOException {
+        StringBuilder sb = new StringBuilder("GET / HTTP/1.1\r\n");
+        while (sb.length() < 9000) {
+            sb.append("X-Filler: 0123456789012345678901234567890123456789\r\n");
+        }
+        byte[] large = bytes(sb.toString());
+        Parser p = new Parser(1024);
+        // 分段到达，最后还没有到达请求头的结尾
+        for (int i = 0; i < large.length; i += 1000) {
+            p.socket.feed(large, i, Math.min(i + 1000, large.length));
+        }
+        assertThrows(HeaderTooLargeException.class, p::parse);
+
+        // 正好等于限制时可以解析
+        int max = p.in.getMaxHeaderSize();
+        sb.setLength(0);
+        sb.append("GET / HTTP/1.1\r\nX-Filler: ");
+        while (sb.length() < max - 4) {
+            sb.append('0');
+        }
+        byte[] exact = bytes(sb.append("\r\n\r\n").toString());
+        assertEquals(max, exact.length);
+        p = new Parser(1024);
+        p.socket.feed(exact);
+        assertTrue(p.parse());
+        assertEquals(max - 30, p.request.getHeader("x-filler").length());
+    }
+
+    private static void assertRequest(Parser p, String message) throws IOException {
+        RawRequest request = p.request;
+        assertEquals("GET", request.getMethod(), message);
+        assertEquals("/j2ee2/hello", request.getUri(), message);
+        assertArrayEquals(bytes("name=Tom&age=18"), request.getQuery(), message);
+        assertEquals("HTTP/1.1", request.getProtocol(), message);
+        assertEquals(5, request.getHeaderCount(), message);
+        assertEquals("localhost:8888", request.getHeader("Host"), message);
+        // 头域值去掉了前后的空白
+        assertEquals("curl/7.68.0", request.getHeader("user-agent"), message);
+        assertEquals("*/*", request.getHeader("ACCEPT"), message);
+        assertEquals("", request.getHeader("x-empty"), message);
+        assertEquals(5, request.getContentLengthLong(), message);
+        assertFalse(request.isChunked(), message);
+        // 请求体留在读 buffer 里
+        byte[] body = new byte[5];
+        int n = 0;
+        while (n < body.length) {
+            n += p.in.read(body, n, body.length - n);
+        }
+        assertArrayEquals(bytes("hello"), body, message);
+    }
+
+    static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 一个连接上的请求解析器
+     */
+    static class Parser {
+        final RawRequest request = new RawRequest();
+        final InputBuffer in = new InputBuffer(request);
+        final ScriptedChannel socket;
+
+        Parser(int readSize) {
+            socket = new ScriptedChannel(readSize);
+            in.setSocket(socket);
+        }
+
+        boolean parse() throws IOException {
+            return in.parseRequestLineAndHeaders();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.ryou.tomcat.http;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.ryou.tomcat.net.NioChannel;
+import com.ryou.tomcat.net.util.NioBufferHandler;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 21:40
+ *
+ * 统计解析一个带 12 个请求头的 GET 请求平均分配多少字节
+ * 请求已经在读 buffer 里，不经过网络，分三种情况：
+ * + 只解析，并做 Processor 里的检查（协议版本、connection、host、transfer-encoding、content-length）
+ * + 再加上 Servlet 常用的请求方法、请求路径、一个请求头
+ * + 所有请求头都转成字符串，相当于以前解析时就全部创建字符串
+ *
+ * 用法：java RequestParseBenchmark [请求数=1000000]
+ */
+public class RequestParseBenchmark {
+
+    private static final byte[] REQUEST = ("GET /j2ee2/hello?name=Tom HTTP/1.1\r\n"
+            + "Host: localhost:8888\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Cache-Control: max-age=0\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Sec-Fetch-Site: none\r\n"
+            + "Sec-Fetch-Mode: navigate\r\n"
+            + "Sec-Fetch-Dest: document\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Accept-Language: zh-CN,zh;q=0.9,en;q=0.8\r\n"
+            + "Cookie: JSESSIONID=4F2A9C0D1E7B3A5C\r\n"
+            + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private static final String[] HEADERS = {"host", "connection", "cache-control", "upgrade-insecure-requests",
+            "user-agent", "accept", "sec-fetch-site", "sec-fetch-mode", "sec-fetch-dest", "accept-encoding",
+            "accept-language", "cookie"};
+
+    private static final int PARSE_ONLY = 0;
+    private static final int TYPICAL_SERVLET = 1;
+    private static final int ALL_HEADERS = 2;
+
+    /** 防止 JIT 把没有使用的结果优化掉 */
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        // 日志会严重影响结果
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+
+        RawRequest request = new RawRequest();
+        InputBuffer inBuffer = new InputBuffer(request);
+        NioChannel socket = new NioChannel(null, new NioBufferHandler(4096, 8192));
+        inBuffer.setSocket(socket);
+
+        System.out.printf("java %s, 请求 %dB, %d 个请求头, %d 个请求%n",
+                System.getProperty("java.version"), REQUEST.length, HEADERS.length, requests);
+        String[] names = {"只解析", "Servlet 常用", "所有请求头"};
+        for (int mode = PARSE_ONLY; mode <= ALL_HEADERS; mode++) {
+            // 预热
+            run(inBuffer, socket, request, mode, requests / 5);
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            run(inBuffer, socket, request, mode, requests);
+            long elapsed = System.nanoTime() - start;
+            bytes = allocatedBytes() - bytes;
+            System.out.printf("%-12s %8.1f B/请求, %6.0f ns/请求%n",
+                    names[mode], (double) bytes / requests, (double) elapsed / requests);
+        }
+        if (sink == 42) System.out.println();
+    }
+
+    private static void run(InputBuffer inBuffer, NioChannel socket, RawRequest request, int mode, int requests)
+            throws Exception {
+        for (int i = 0; i < requests; i++) {
+            ByteBuffer readBuf = socket.readBuf();
+            readBuf.clear();
+            readBuf.put(REQUEST);
+            readBuf.flip();
+            if (!inBuffer.parseRequestLineAndHeaders()) throw new IllegalStateException("请求不完整");
+
+            // HttpNioProcessor.checkRequest、prepareRequest 里的检查
+            if (!request.protocol().equalsIgnoreCase("HTTP/1.1")) throw new IllegalStateException();
+            if (!request.isConnectionKeepAlive()) throw new IllegalStateException();
+            if (request.getHeaderBytes(KnownHeaders.HOST) == null) throw new IllegalStateException();
+            if (request.isChunked()) throw new IllegalStateException();
+            sink += request.getContentLengthLong();
+
+            if (mode >= TYPICAL_SERVLET) {
+                sink += request.getMethod().length();
+                sink += request.getUri().length();
+                sink += request.getHeader("user-agent").length();
+            }
+            if (mode == ALL_HEADERS) {
+                for (String name : HEADERS) {
+                    sink += request.getHeader(name).length();
+                }
+            }
+            inBuffer.recycle();
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
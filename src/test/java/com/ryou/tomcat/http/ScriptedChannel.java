@@ -0,0 +1,77 @@
+package com.ryou.tomcat.http;
+
+import com.ryou.tomcat.net.NioChannel;
+import com.ryou.tomcat.net.util.NioBufferHandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/18 00:10
+ *
+ * 测试用的通道，不经过网络，按顺序返回事先放进来的数据段
+ * 每次读取最多返回一段，数据段之间的位置就是请求在网络上被拆开的位置
+ * + 没有数据段时，没关闭返回 0（非阻塞读取暂时没有数据），关闭了返回 -1
+ * + 阻塞读取时没有数据会一直等下去，这里直接抛出异常
+ */
+public class ScriptedChannel extends NioChannel {
+
+    private final Deque<ByteBuffer> segments = new ArrayDeque<>();
+    private boolean inputShutdown = false;
+
+    public ScriptedChannel(int readSize) {
+        super(null, new NioBufferHandler(readSize, 8192));
+    }
+
+    /**
+     * 放入 data 的 [from, to) 作为一个数据段
+     */
+    public ScriptedChannel feed(byte[] data, int from, int to) {
+        if (to > from) {
+            segments.add(ByteBuffer.wrap(data, from, to - from));
+        }
+        return this;
+    }
+
+    public ScriptedChannel feed(byte[] data) {
+        return feed(data, 0, data.length);
+    }
+
+    /**
+     * 客户端关闭了连接，数据段读完以后返回 -1
+     */
+    public ScriptedChannel shutdownInput() {
+        inputShutdown = true;
+        return this;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        ByteBuffer src = segments.peek();
+        if (src == null) {
+            return inputShutdown ? -1 : 0;
+        }
+        int n = Math.min(dst.remaining(), src.remaining());
+        ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + n);
+        dst.put(slice);
+        src.position(src.position() + n);
+        if (!src.hasRemaining()) {
+            segments.poll();
+        }
+        return n;
+    }
+
+    @Override
+    public void awaitReadable() throws IOException {
+        throw new IOException("没有更多数据");
+    }
+
+    @Override
+    public String toString() {
+        return "scripted";
+    }
+}
@@ -0,0 +1,278 @@
+package com.ryou.tomcat.http.codec;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.ryou.tomcat.http.InputBuffer;
+import com.ryou.tomcat.http.RawRequest;
+import com.ryou.tomcat.http.ScriptedChannel;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/18 00:30
+ *
+ * chunked 请求体的解码：块头、块数据、块尾、尾部请求头在任意一个字节处被拆开，
+ * 解码结果都一样，并且不会多读管道化的下一个请求
+ */
+public class ChunkedCodecTest {
+
+    private static final String BODY = "hello" + "abcdefghijklmnopqrstuvwxyz";
+
+    private static final byte[] REQUEST = bytes("POST /j2ee2/echo HTTP/1.1\r\n"
+            + "Host: x\r\n"
+            + "Transfer-Encoding: chunked\r\n"
+            + "\r\n"
+            + "5;name=value\r\n"
+            + "hello\r\n"
+            + "1A\r\n"
+            + "abcdefghijklmnopqrstuvwxyz\r\n"
+            + "0\r\n"
+            + "X-Checksum: 42\r\n"
+            + "\r\n"
+            + "GET /next HTTP/1.1\r\n"
+            + "Host: y\r\n"
+            + "\r\n");
+
+    @BeforeAll
+    static void quiet() {
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+    }
+
+    @Test
+    void splitAtEveryByte() throws IOException {
+        for (int split = 1; split < REQUEST.length; split++) {
+            Connection c = new Connection(-1);
+            c.socket.feed(REQUEST, 0, split).feed(REQUEST, split, REQUEST.length);
+            assertRequestAndNext(c, "split " + split);
+        }
+    }
+
+    @Test
+    void splitTwiceAtEveryByte() throws IOException {
+        // 块头和块尾这些短的部分被拆成三段
+        for (int first = 1; first < REQUEST.length; first++) {
+            for (int second = first + 1; second < Math.min(first + 8, REQUEST.length); second++) {
+                Connection c = new Connection(-1);
+                c.socket.feed(REQUEST, 0, first).feed(REQUEST, first, second).feed(REQUEST, second, REQUEST.length);
+                assertRequestAndNext(c, "split " + first + ", " + second);
+            }
+        }
+    }
+
+    @Test
+    void oneByteAtATime() throws IOException {
+        Connection c = new Connection(-1);
+        for (int i = 0; i < REQUEST.length; i++) {
+            c.socket.feed(REQUEST, i, i + 1);
+        }
+        assertRequestAndNext(c, "");
+    }
+
+    @Test
+    void bareLineFeeds() throws IOException {
+        Connection c = new Connection(-1);
+        c.feedBody("5\nhello\n3 ; ext\nabc\n0\n\n");
+        assertEquals("helloabc", c.readBody());
+    }
+
+    @Test
+    void swallowUnreadBody() throws IOException {
+        for (int split = 1; split < REQUEST.length; split++) {
+            Connection c = new Connection(-1);
+            c.socket.feed(REQUEST, 0, split).feed(REQUEST, split, REQUEST.length);
+            assertTrue(c.in.parseRequestLineAndHeaders(), "split " + split);
+            // Servlet 只读了一部分，请求结束时跳过剩下的
+            assertTrue(c.codec.doRead(c.in, c.in) > 0, "split " + split);
+            c.codec.endRead(c.in);
+            assertNext(c, "split " + split);
+        }
+    }
+
+    @Test
+    void rejectBadHex() {
+        for (String bad : new String[]{"g\r\n", "\r\n", "-1\r\n", "0x5\r\n", ";ext\r\n"}) {
+            Connection c = new Connection(-1);
+            c.feedBody(bad + "hello\r\n0\r\n\r\n");
+            assertMalformed(c, bad);
+        }
+    }
+
+    @Test
+    void rejectTooManyDigits() {
+        Connection c = new Connection(-1);
+        c.feedBody("1000000000000000\r\n");
+        assertMalformed(c, "");
+
+        // 前导 0 也算位数
+        c = new Connection(-1);
+        c.feedBody("0000000000000005\r\nhello\r\n0\r\n\r\n");
+        assertMalformed(c, "");
+    }
+
+    @Test
+    void rejectMissingCrlf() {
+        for (String bad : new String[]{
+                "5\rhello\r\n0\r\n\r\n", // 块头的 CR 后面不是 LF
+                "5\r\nhelloX\r\n0\r\n\r\n", // 块数据后面不是 CRLF
+                "5\r\nhello\rX0\r\n\r\n", // 块数据后面的 CR 后面不是 LF
+                "5\r\nhello0\r\n\r\n", // 块数据后面直接是下一块
+                "0\r\n\rX"}) { // 结尾的空行
+            Connection c = new Connection(-1);
+            c.feedBody(bad);
+            assertMalformed(c, bad);
+        }
+    }
+
+    @Test
+    void errorIsSticky() throws IOException {
+        Connection c = new Connection(-1);
+        c.feedBody("5\r\nhelloX\r\n0\r\n\r\n");
+        assertEquals(5, c.codec.doRead(c.in, c.in));
+        assertThrows(IOException.class, () -> c.codec.doRead(c.in, c.in));
+        // 之后的读取和跳过都失败，连接会被关闭
+        assertThrows(IOException.class, () -> c.codec.doRead(c.in, c.in));
+        assertThrows(IOException.class, () -> c.codec.endRead(c.in));
+    }
+
+    @Test
+    void skipTrailers() throws IOException {
+        Connection c = new Connection(-1);
+        c.feedBody("3\r\nabc\r\n0\r\nX-A: 1\r\nX-B:2\n\r\nGET /next HTTP/1.1\r\nHost: y\r\n\r\n");
+        assertEquals("abc", c.readBody());
+        assertNext(c, "");
+    }
+
+    @Test
+    void rejectLargeTrailers() throws IOException {
+        Connection c = new Connection(-1, 16);
+        c.feedBody("3\r\nabc\r\n0\r\nX-Trailer: 0123456789\r\n\r\n");
+        assertMalformed(c, "");
+
+        // 尾部请求头包括行尾不超过 16 字节
+        Connection ok = new Connection(-1, 16);
+        ok.feedBody("3\r\nabc\r\n0\r\nX-Trailer: 01\r\n\r\n");
+        assertEquals("abc", ok.readBody());
+    }
+
+    @Test
+    void maxBodySize() throws IOException {
+        Connection c = new Connection(10);
+        c.feedBody("5\r\nhello\r\n5\r\nworld\r\n0\r\n\r\n");
+        assertEquals("helloworld", c.readBody());
+
+        c = new Connection(10);
+        c.feedBody("5\r\nhello\r\n6\r\nworld!\r\n0\r\n\r\n");
+        Connection overflow = c;
+        assertEquals(5, overflow.codec.doRead(overflow.in, overflow.in));
+        // 块头里的长度就超过了限制，不用等块数据到达
+        IOException e = assertThrows(IOException.class, () -> overflow.codec.doRead(overflow.in, overflow.in));
+        assertTrue(e.getMessage().contains("maxBodySize"), e.getMessage());
+
+        // 一块就超过限制
+        Connection single = new Connection(10);
+        single.feedBody("b\r\n");
+        assertThrows(IOException.class, () -> single.codec.doRead(single.in, single.in));
+
+        // 跳过请求体时也受限制
+        Connection swallow = new Connection(10);
+        swallow.feedBody("5\r\nhello\r\n6\r\nworld!\r\n0\r\n\r\n");
+        assertThrows(IOException.class, () -> swallow.codec.endRead(swallow.in));
+    }
+
+    @Test
+    void truncatedBody() {
+        for (String truncated : new String[]{"5\r\nhel", "5\r\nhello\r\n", "5\r\nhello\r\n0\r\n", "5"}) {
+            Connection c = new Connection(-1);
+            c.feedBody(truncated);
+            c.socket.shutdownInput();
+            assertThrows(EOFException.class, c::readBody, truncated);
+        }
+    }
+
+    private static void assertRequestAndNext(Connection c, String message) throws IOException {
+        assertTrue(c.in.parseRequestLineAndHeaders(), message);
+        assertTrue(c.request.isChunked(), message);
+        assertEquals(BODY, c.readBody(), message);
+        // 读完以后继续读还是 -1
+        assertEquals(-1, c.codec.doRead(c.in, c.in), message);
+        assertNext(c, message);
+    }
+
+    /**
+     * 请求体后面管道化的下一个请求还在
+     */
+    private static void assertNext(Connection c, String message) throws IOException {
+        c.in.recycle();
+        assertTrue(c.in.parseRequestLineAndHeaders(), message);
+        assertEquals("GET", c.request.getMethod(), message);
+        assertEquals("/next", c.request.getUri(), message);
+        assertEquals("y", c.request.getHeader("host"), message);
+        assertFalse(c.in.hasBufferedData(), message);
+    }
+
+    /**
+     * 格式错误，而不是数据不够
+     */
+    private static void assertMalformed(Connection c, String message) {
+        c.socket.shutdownInput();
+        IOException e = assertThrows(IOException.class, c::readBody, message);
+        assertFalse(e instanceof EOFException, message + ": " + e);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 一个连接上的请求解析器和 chunked 解码器
+     */
+    private static class Connection {
+        final RawRequest request = new RawRequest();
+        final InputBuffer in = new InputBuffer(request);
+        final ScriptedChannel socket = new ScriptedChannel(4096);
+        final ChunkedCodec codec;
+
+        Connection(long maxBodySize) {
+            this(maxBodySize, 8192);
+        }
+
+        Connection(long maxBodySize, int maxTrailerSize) {
+            codec = new ChunkedCodec(maxBodySize, maxTrailerSize);
+            in.setSocket(socket);
+            in.setBodyCodec(codec);
+        }
+
+        /**
+         * 请求头已经解析过了，只放入请求体
+         */
+        void feedBody(String body) {
+            socket.feed(bytes(body));
+        }
+
+        String readBody() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int n;
+            while ((n = codec.doRead(in, in)) >= 0) {
+                ByteBuffer data = in.getByteBuffer();
+                assertEquals(n, data.remaining());
+                byte[] b = new byte[n];
+                data.get(b);
+                out.write(b, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.ryou.tomcat.net;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.ryou.tomcat.http.HttpNioProcessor;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Author: 汉高鼠刘邦
+ * @Date: 2026/10/17 17:20
+ *
+ * 对比线程池和虚拟线程两种模式在阻塞型 Servlet 下的吞吐量和延迟
+ * 每个请求在 Adapter 里 sleep 一段时间，模拟 JDBC、下游 HTTP 调用
+ *
+ * 用法：java ExecutorModeBenchmark [并发连接数=200] [每个连接的请求数=20] [阻塞毫秒数=50]
+ * 虚拟线程模式需要用 Java 21 及以上运行，否则会退回到线程池
+ */
+public class ExecutorModeBenchmark {
+
+    private static final byte[] BODY = "OK".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        long blockMillis = args.length > 2 ? Long.parseLong(args[2]) : 50;
+
+        // 日志会严重影响结果
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+
+        System.out.printf("java %s, %d 个连接 x %d 个请求, 每个请求阻塞 %dms%n",
+                System.getProperty("java.version"), clients, requests, blockMillis);
+        run(false, 18080, clients, requests, blockMillis);
+        run(true, 18081, clients, requests, blockMillis);
+        System.exit(0);
+    }
+
+    private static void run(boolean virtual, int port, int clients, int requests, long blockMillis) throws Exception {
+        NioEndpoint endpoint = new NioEndpoint();
+        endpoint.setPort(port);
+        endpoint.setUseVirtualThreads(virtual);
+        endpoint.setHandler(new Handler() {
+            @Override
+            protected Processor createProcessor() {
+                HttpNioProcessor processor = new HttpNioProcessor();
+                processor.setAdaptor((request, response) -> {
+                    Thread.sleep(blockMillis);
+                    response.setContentLength(BODY.length);
+                    response.doWrite(ByteBuffer.wrap(BODY));
+                });
+                return processor;
+            }
+        });
+        endpoint.init();
+        endpoint.startInternal();
+
+        // 预热
+        client(port, 1, new long[1], new AtomicInteger());
+
+        long[][] latencies = new long[clients][requests];
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            long[] latency = latencies[i];
+            Thread t = new Thread(() -> {
+                client(port, requests, latency, errors);
+                done.countDown();
+            });
+            t.start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        endpoint.stop();
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).filter(l -> l > 0).sorted().toArray();
+        int total = all.length;
+        System.out.printf("%-8s 请求 %6d, 失败 %4d, 吞吐量 %8.1f req/s, p50 %6.1fms, p99 %6.1fms, max %6.1fms%n",
+                endpoint.isVirtualThreads() ? "虚拟线程" : "线程池", total, errors.get(),
+                total * 1e9 / elapsed, percentile(all, 0.50), percentile(all, 0.99), percentile(all, 1.0));
+    }
+
+    /**
+     * 在一个长连接上顺序发送请求，记录每个请求的延迟
+     */
+    private static void client(int port, int requests, long[] latency, AtomicInteger errors) {
+        byte[] request = ("GET /bench HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] buf = new byte[4096];
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(60000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            for (int i = 0; i < requests; i++) {
+                long begin = System.nanoTime();
+                out.write(request);
+                out.flush();
+                if (!readResponse(in, buf)) {
+                    errors.incrementAndGet();
+                    return;
+                }
+                latency[i] = System.nanoTime() - begin;
+            }
+        } catch (Exception e) {
+            errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * 读取一个完整的响应，响应体是定长的 {@link #BODY}
+     */
+    private static boolean readResponse(InputStream in, byte[] buf) throws Exception {
+        int len = 0;
+        int headerEnd = -1;
+        while (headerEnd < 0 || len < headerEnd + BODY.length) {
+            int n = in.read(buf, len, buf.length - len);
+            if (n < 0) return false;
+            len += n;
+            if (headerEnd < 0) {
+                for (int i = 3; i < len; i++) {
+                    if (buf[i - 3] == '\r' && buf[i - 2] == '\n' && buf[i - 1] == '\r' && buf[i] == '\n') {
+                        headerEnd = i + 1;
+                        break;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}